@@ -1,9 +1,12 @@
 package net.conczin;
 
 import com.hypixel.hytale.assetstore.AssetRegistry;
+import com.hypixel.hytale.assetstore.event.LoadedAssetsEvent;
+import com.hypixel.hytale.assetstore.event.RemovedAssetsEvent;
 import com.hypixel.hytale.assetstore.map.DefaultAssetMap;
 import com.hypixel.hytale.component.ResourceType;
 import com.hypixel.hytale.server.core.asset.HytaleAssetStore;
+import com.hypixel.hytale.server.core.asset.type.soundevent.config.SoundEvent;
 import com.hypixel.hytale.server.core.modules.interaction.interaction.config.Interaction;
 import com.hypixel.hytale.server.core.modules.interaction.interaction.config.server.OpenCustomUIInteraction;
 import com.hypixel.hytale.server.core.Constants;
@@ -11,10 +14,16 @@ import com.hypixel.hytale.server.core.HytaleServer;
 import com.hypixel.hytale.server.core.modules.singleplayer.SingleplayerRequestAccessEvent;
 import com.hypixel.hytale.server.core.plugin.JavaPlugin;
 import com.hypixel.hytale.server.core.plugin.JavaPluginInit;
+import com.hypixel.hytale.server.core.util.Config;
 import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
 import com.hypixel.hytale.protocol.packets.serveraccess.Access;
+import net.conczin.commands.MelodiesCommand;
+import net.conczin.data.InstrumentSoundBank;
 import net.conczin.data.MelodyAsset;
+import net.conczin.data.MelodyDiskCache;
 import net.conczin.data.MelodyPlaybackInteraction;
+import net.conczin.data.MelodyPlaybackSessions;
+import net.conczin.data.MelodyPlaybackSystem;
 import net.conczin.data.YmmersiveMelodiesRegistry;
 import net.conczin.gui.MelodySelectionSupplier;
 
@@ -24,12 +33,16 @@ import javax.annotation.Nonnull;
 public class YmmersiveMelodies extends JavaPlugin {
     private static YmmersiveMelodies instance;
 
+    private final Config<YmmersiveMelodiesConfig> config;
+
     private ResourceType<EntityStore, YmmersiveMelodiesRegistry> ymmersiveMelodiesRegistry;
+    private ResourceType<EntityStore, MelodyPlaybackSessions> melodyPlaybackSessions;
 
 
     public YmmersiveMelodies(@Nonnull JavaPluginInit init) {
         super(init);
         instance = this;
+        this.config = this.withConfig("YmmersiveMelodies", YmmersiveMelodiesConfig.CODEC);
     }
 
     @Override
@@ -40,6 +53,15 @@ public class YmmersiveMelodies extends JavaPlugin {
                 YmmersiveMelodiesRegistry.CODEC
         );
 
+        this.melodyPlaybackSessions = this.getEntityStoreRegistry().registerResource(
+                MelodyPlaybackSessions.class,
+                MelodyPlaybackSessions::new
+        );
+
+        this.getEntityStoreRegistry().registerSystem(new MelodyPlaybackSystem());
+
+        this.getCommandRegistry().registerCommand(new MelodiesCommand());
+
         this.getCodecRegistry(Interaction.CODEC).register(
                 "Ymmersive_Melodies_Melody_Playback",
                 MelodyPlaybackInteraction.class,
@@ -58,6 +80,16 @@ public class YmmersiveMelodies extends JavaPlugin {
                 MelodySelectionSupplier.class,
                 MelodySelectionSupplier.CODEC);
 
+        // Sound event indices may change on reload
+        HytaleServer.get().getEventBus()
+                .register(LoadedAssetsEvent.class, SoundEvent.class, _ -> InstrumentSoundBank.invalidate());
+
+        // Resolved melody handles point to the old assets after a reload
+        HytaleServer.get().getEventBus()
+                .register(LoadedAssetsEvent.class, MelodyAsset.class, _ -> MelodyAsset.invalidate());
+        HytaleServer.get().getEventBus()
+                .register(RemovedAssetsEvent.class, MelodyAsset.class, _ -> MelodyAsset.invalidate());
+
         if (Constants.SINGLEPLAYER) {
             HytaleServer.get().getEventBus()
                     .register(SingleplayerRequestAccessEvent.class, event ->
@@ -66,11 +98,30 @@ public class YmmersiveMelodies extends JavaPlugin {
         }
     }
 
+    @Override
+    protected void start() {
+        // Write the defaults for new options
+        this.config.save();
+
+        // Resolve all instrument sounds now to report broken sound packs at startup
+        InstrumentSoundBank.get();
+
+        MelodyDiskCache.prune();
+    }
+
     public static YmmersiveMelodies getInstance() {
         return instance;
     }
 
+    public YmmersiveMelodiesConfig getMelodiesConfig() {
+        return config.get();
+    }
+
     public ResourceType<EntityStore, YmmersiveMelodiesRegistry> getYmmersiveMelodiesRegistry() {
         return ymmersiveMelodiesRegistry;
     }
+
+    public ResourceType<EntityStore, MelodyPlaybackSessions> getMelodyPlaybackSessions() {
+        return melodyPlaybackSessions;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package net.conczin;
+
+import com.hypixel.hytale.codec.Codec;
+import com.hypixel.hytale.codec.KeyedCodec;
+import com.hypixel.hytale.codec.builder.BuilderCodec;
+import net.conczin.data.CatchUpMode;
+
+
+public final class YmmersiveMelodiesConfig {
+    public static final BuilderCodec<YmmersiveMelodiesConfig> CODEC = BuilderCodec.builder(YmmersiveMelodiesConfig.class, YmmersiveMelodiesConfig::new)
+            .append(
+                    new KeyedCodec<>("MaxSyncAnchors", Codec.INTEGER),
+                    (o, v) -> o.maxSyncAnchors = v,
+                    o -> o.maxSyncAnchors)
+            .add()
+            .append(
+                    new KeyedCodec<>("DispatcherShards", Codec.INTEGER),
+                    (o, v) -> o.dispatcherShards = v,
+                    o -> o.dispatcherShards)
+            .add()
+            .append(
+                    new KeyedCodec<>("BufferFloorMs", Codec.INTEGER),
+                    (o, v) -> o.bufferFloorMs = v,
+                    o -> o.bufferFloorMs)
+            .add()
+            .append(
+                    new KeyedCodec<>("BufferCeilingMs", Codec.INTEGER),
+                    (o, v) -> o.bufferCeilingMs = v,
+                    o -> o.bufferCeilingMs)
+            .add()
+            .append(
+                    new KeyedCodec<>("CatchUpMode", Codec.STRING),
+                    (o, v) -> o.catchUpMode = v,
+                    o -> o.catchUpMode)
+            .add()
+            .append(
+                    new KeyedCodec<>("MaxVoices", Codec.INTEGER),
+                    (o, v) -> o.maxVoices = v,
+                    o -> o.maxVoices)
+            .add()
+            .append(
+                    new KeyedCodec<>("LazyMelodies", Codec.BOOLEAN),
+                    (o, v) -> o.lazyMelodies = v,
+                    o -> o.lazyMelodies)
+            .add()
+            .append(
+                    new KeyedCodec<>("MelodyCacheNotes", Codec.LONG),
+                    (o, v) -> o.melodyCacheNotes = v,
+                    o -> o.melodyCacheNotes)
+            .add()
+            .append(
+                    new KeyedCodec<>("DiskCache", Codec.BOOLEAN),
+                    (o, v) -> o.diskCache = v,
+                    o -> o.diskCache)
+            .add()
+            .build();
+
+    // Per world, performers beyond this still play, but nobody syncs to them
+    public int maxSyncAnchors = 4096;
+
+    // Note dispatch threads per world, 0 uses one per two cores, idle threads sleep until their next note
+    public int dispatcherShards = 0;
+
+    // Bounds of the adaptive playback lookahead
+    public int bufferFloorMs = 60;
+    public int bufferCeilingMs = 300;
+
+    // SKIP_TO_NOW, COMPRESS or STRICT
+    public String catchUpMode = CatchUpMode.SKIP_TO_NOW.name();
+
+    // Notes a player receives per 50 ms slice at most, across all performers and ticks, 0 for no limit
+    public int maxVoices = 0;
+
+    // Parse melody assets on first use and keep at most this many notes of idle melodies around
+    public boolean lazyMelodies = false;
+    public long melodyCacheNotes = 2_000_000L;
+
+    // Keep parsed MIDI files in the plugin's data directory, skipping the parser for unchanged files
+    public boolean diskCache = true;
+
+    public int getDispatcherShards() {
+        return dispatcherShards > 0 ? dispatcherShards : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public CatchUpMode getCatchUpMode() {
+        return CatchUpMode.parse(catchUpMode, CatchUpMode.SKIP_TO_NOW);
+    }
+}
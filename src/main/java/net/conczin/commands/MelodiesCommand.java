@@ -0,0 +1,82 @@
+package net.conczin.commands;
+
+import com.hypixel.hytale.component.Store;
+import com.hypixel.hytale.server.core.Message;
+import com.hypixel.hytale.server.core.command.system.CommandContext;
+import com.hypixel.hytale.server.core.command.system.basecommands.CommandBase;
+import com.hypixel.hytale.server.core.universe.Universe;
+import com.hypixel.hytale.server.core.universe.world.World;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import net.conczin.YmmersiveMelodies;
+import net.conczin.data.JitterBuffer;
+import net.conczin.data.MelodyAsset;
+import net.conczin.data.MelodyCache;
+import net.conczin.data.MelodyPlaybackSessions;
+import net.conczin.data.MelodySyncRegistry;
+import net.conczin.data.NoteDispatcher;
+import net.conczin.data.NoteScheduler;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.Map;
+
+// Reports playback internals for server operators
+public class MelodiesCommand extends CommandBase {
+    public MelodiesCommand() {
+        super("melodies", "Shows Ymmersive Melodies playback statistics");
+    }
+
+    @Override
+    protected void executeSync(@Nonnull CommandContext context) {
+        Map<Path, String> errors = MelodyAsset.getErrors();
+        if (!errors.isEmpty()) {
+            context.sendMessage(Message.raw(String.format("Melodies failed to load: %d", errors.size())));
+            errors.forEach((path, error) -> context.sendMessage(Message.raw(String.format("  %s: %s", path.getFileName(), error))));
+        }
+
+        context.sendMessage(Message.raw(String.format("Melody cache: %d melodies, %d / %d notes, %d hits, %d misses, %d evictions",
+                MelodyCache.getSize(),
+                MelodyCache.getWeight(),
+                YmmersiveMelodies.getInstance().getMelodiesConfig().melodyCacheNotes,
+                MelodyCache.getHits(),
+                MelodyCache.getMisses(),
+                MelodyCache.getEvictions())));
+
+        // Playback state belongs to the world, so it is read on the world's thread
+        for (World world : Universe.get().getWorlds().values()) {
+            world.execute(() -> {
+                Store<EntityStore> store = world.getEntityStore().getStore();
+                report(context, world.getName(), store.getResource(MelodyPlaybackSessions.getResourceType()));
+            });
+        }
+    }
+
+    private static void report(CommandContext context, String world, MelodyPlaybackSessions sessions) {
+        MelodySyncRegistry syncRegistry = sessions.getSyncRegistry();
+        context.sendMessage(Message.raw(String.format("%s: %d sync anchors (max %d) across %d melodies, %d evicted",
+                world,
+                syncRegistry.getAnchorCount(),
+                YmmersiveMelodies.getInstance().getMelodiesConfig().maxSyncAnchors,
+                syncRegistry.getMelodyCount(),
+                syncRegistry.getEvictedCount())));
+
+        JitterBuffer buffer = sessions.getJitterBuffer();
+        context.sendMessage(Message.raw(String.format("%s: %d ms buffer, %d late ticks, %d skipped notes",
+                world,
+                buffer.getBufferMs(),
+                buffer.getLateTicks(),
+                buffer.getSkippedNotes())));
+
+        NoteDispatcher dispatcher = sessions.getDispatcher();
+        context.sendMessage(Message.raw(String.format("%s: %d voices dropped", world, dispatcher.getDroppedVoices())));
+        for (int i = 0; i < dispatcher.getShardCount(); i++) {
+            NoteScheduler shard = dispatcher.getShard(i);
+            context.sendMessage(Message.raw(String.format("%s shard %d: %d pending, %d sent, lateness avg %.1f ms, max %d ms",
+                    world, i,
+                    shard.getPending(),
+                    shard.getDispatched(),
+                    shard.getAverageLatenessMs(),
+                    shard.getMaxLatenessMs())));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package net.conczin.data;
+
+// How playback recovers when a tick took longer than the buffer
+public enum CatchUpMode {
+    // Drop the notes of the gap, but stay in phase with the anchor
+    SKIP_TO_NOW,
+    // Replay the missed notes faster over the following ticks, up to a limit
+    COMPRESS,
+    // Only advance by the buffer, the rest of the gap is lost
+    STRICT;
+
+    public static CatchUpMode parse(String name, CatchUpMode fallback) {
+        for (CatchUpMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,87 @@
+package net.conczin.data;
+
+// A melody rendered for one instrument: final sound event, pitch, volume and voice priority per timeline note
+public final class CompiledMelody {
+    private static final int MIDDLE_C = 60;
+
+    private final MelodyTimeline timeline;
+    private final int generation;
+    private final int[] soundEvents;
+    private final float[] pitches;
+    private final float[] volumes;
+    private final int[] priorities;
+
+    private CompiledMelody(MelodyTimeline timeline, String instrument, InstrumentSoundBank bank) {
+        this.timeline = timeline;
+        this.generation = bank.generation();
+
+        int size = timeline.size();
+        this.soundEvents = new int[size];
+        this.pitches = new float[size];
+        this.volumes = new float[size];
+        this.priorities = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            float volume = timeline.velocity(i) / 64.0f;
+            float pitch = (float) Math.pow(2, (timeline.note(i) - 24) / 12.0);
+            int octave = 1;
+            while (octave < 8 && pitch > 4.0 / 3.0) {
+                pitch /= 2;
+                octave++;
+            }
+
+            // Adjust volume based on perceived loudness
+            float factor = 0.5f;
+            float adjustedVolume = (float) (volume / Math.sqrt(pitch * Math.pow(2, octave - 4)));
+            volume = volume * (1.0f - factor) + adjustedVolume * factor;
+
+            // Missing samples fall back to another octave, compensate the pitch for that
+            int length = InstrumentSoundBank.findClosestLength(timeline.length(i));
+            int shift = bank.octaveShift(instrument, octave, length);
+            soundEvents[i] = bank.soundEvent(instrument, octave, length);
+            pitches[i] = shift == 0 ? pitch : (float) (pitch / Math.pow(2, shift));
+            volumes[i] = volume;
+
+            // Louder first, then the outer voices, then the earlier tracks
+            int extremity = Math.min(Math.abs(timeline.note(i) - MIDDLE_C), 63);
+            int track = Math.min(timeline.track(i), 127);
+            priorities[i] = (Math.min(timeline.velocity(i), 127) << 13) | (extremity << 7) | (127 - track);
+        }
+    }
+
+    public static CompiledMelody of(Melody melody, String instrument) {
+        InstrumentSoundBank bank = InstrumentSoundBank.get();
+        MelodyTimeline timeline = melody.timeline();
+        CompiledMelody compiled = timeline.compiled.get(instrument);
+        if (compiled == null || compiled.generation != bank.generation()) {
+            // Sound events have been reloaded since, indices may have changed
+            compiled = new CompiledMelody(timeline, instrument, bank);
+            timeline.compiled.put(instrument, compiled);
+        }
+        return compiled;
+    }
+
+    public boolean isCurrent() {
+        return generation == InstrumentSoundBank.get().generation();
+    }
+
+    public MelodyTimeline timeline() {
+        return timeline;
+    }
+
+    public int soundEvent(int i) {
+        return soundEvents[i];
+    }
+
+    public float pitch(int i) {
+        return pitches[i];
+    }
+
+    public float volume(int i) {
+        return volumes[i];
+    }
+
+    public int priority(int i) {
+        return priorities[i];
+    }
+}
@@ -0,0 +1,159 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.server.core.asset.type.soundevent.config.SoundEvent;
+import net.conczin.YmmersiveMelodies;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+// Sound event indices of every instrument, octave and note length, resolved once per asset load
+public final class InstrumentSoundBank {
+    public static final String[] INSTRUMENTS = {"Bagpipe", "Didgeridoo", "Flute", "Handpan", "Lute", "Piano", "Tiny_Drum", "Trumpet", "Vielle"};
+    public static final int OCTAVES = 8;
+    public static final int[] LENGTHS = {125, 250, 375, 500, 625, 750, 875, 1000, 1250, 1500, 1750, 2000, 2500, 3000, 4000};
+
+    private static volatile InstrumentSoundBank current;
+    private static int generations;
+
+    private final int generation;
+    private final Map<String, Integer> instrumentIndices = new HashMap<>();
+    private final int[][][] soundEvents;
+    private final int[][][] octaveShifts;
+    private final float[] maxDistances;
+
+    // Instruments from other asset packs, resolved on first use
+    private final Map<String, Resolved> extraInstruments = new ConcurrentHashMap<>();
+
+    private InstrumentSoundBank(int generation) {
+        this.generation = generation;
+        this.soundEvents = new int[INSTRUMENTS.length][][];
+        this.octaveShifts = new int[INSTRUMENTS.length][][];
+        this.maxDistances = new float[INSTRUMENTS.length];
+        for (int i = 0; i < INSTRUMENTS.length; i++) {
+            Resolved resolved = resolve(INSTRUMENTS[i]);
+            instrumentIndices.put(INSTRUMENTS[i], i);
+            soundEvents[i] = resolved.soundEvents;
+            octaveShifts[i] = resolved.octaveShifts;
+            maxDistances[i] = resolved.maxDistance;
+        }
+    }
+
+    public static InstrumentSoundBank get() {
+        InstrumentSoundBank bank = current;
+        if (bank == null) {
+            synchronized (InstrumentSoundBank.class) {
+                bank = current;
+                if (bank == null) {
+                    bank = new InstrumentSoundBank(++generations);
+                    current = bank;
+                }
+            }
+        }
+        return bank;
+    }
+
+    // Called when sound events are (re)loaded, the next lookup rebuilds the table
+    public static void invalidate() {
+        current = null;
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    public int soundEvent(String instrument, int octave, int lengthIndex) {
+        Integer index = instrumentIndices.get(instrument);
+        if (index != null) {
+            return soundEvents[index][octave - 1][lengthIndex];
+        }
+        return extraInstruments.computeIfAbsent(instrument, InstrumentSoundBank::resolve).soundEvents[octave - 1][lengthIndex];
+    }
+
+    // Octaves the resolved sample is above the requested one, the pitch has to be compensated by that
+    public int octaveShift(String instrument, int octave, int lengthIndex) {
+        Integer index = instrumentIndices.get(instrument);
+        if (index != null) {
+            return octaveShifts[index][octave - 1][lengthIndex];
+        }
+        return extraInstruments.computeIfAbsent(instrument, InstrumentSoundBank::resolve).octaveShifts[octave - 1][lengthIndex];
+    }
+
+    // The furthest any sound of this instrument can be heard
+    public float maxDistance(String instrument) {
+        Integer index = instrumentIndices.get(instrument);
+        if (index != null) {
+            return maxDistances[index];
+        }
+        return extraInstruments.computeIfAbsent(instrument, InstrumentSoundBank::resolve).maxDistance;
+    }
+
+    public static int findClosestLength(int length) {
+        int closest = 0;
+        for (int i = 0; i < LENGTHS.length; i++) {
+            if (Math.abs(length - LENGTHS[i]) < Math.abs(length - LENGTHS[closest])) {
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    private static Resolved resolve(String instrument) {
+        int[][] found = new int[OCTAVES][LENGTHS.length];
+        List<String> missing = new ArrayList<>();
+        float maxDistance = 0.0f;
+        for (int octave = 0; octave < OCTAVES; octave++) {
+            for (int length = 0; length < LENGTHS.length; length++) {
+                String name = "SFX_Ymmersive_Melodies_%s_C%s_%sms".formatted(instrument, octave + 1, LENGTHS[length]);
+                int index = SoundEvent.getAssetMap().getIndex(name);
+                SoundEvent soundEvent = SoundEvent.getAssetMap().getAsset(index);
+                if (soundEvent == null) {
+                    found[octave][length] = -1;
+                    missing.add(name);
+                } else {
+                    found[octave][length] = index;
+                    maxDistance = Math.max(maxDistance, soundEvent.getMaxDistance());
+                }
+            }
+        }
+
+        // Fill gaps with the closest length of the same octave, or else with the closest octave
+        Resolved resolved = new Resolved(new int[OCTAVES][LENGTHS.length], new int[OCTAVES][LENGTHS.length], maxDistance);
+        for (int octave = 0; octave < OCTAVES; octave++) {
+            for (int length = 0; length < LENGTHS.length; length++) {
+                resolved.soundEvents[octave][length] = -1;
+                search:
+                for (int octaveDistance = 0; octaveDistance < OCTAVES; octaveDistance++) {
+                    for (int lengthDistance = 0; lengthDistance < LENGTHS.length; lengthDistance++) {
+                        for (int candidateOctave : new int[]{octave - octaveDistance, octave + octaveDistance}) {
+                            for (int candidateLength : new int[]{length - lengthDistance, length + lengthDistance}) {
+                                if (candidateOctave < 0 || candidateOctave >= OCTAVES || candidateLength < 0 || candidateLength >= LENGTHS.length) {
+                                    continue;
+                                }
+                                if (found[candidateOctave][candidateLength] >= 0) {
+                                    resolved.soundEvents[octave][length] = found[candidateOctave][candidateLength];
+                                    resolved.octaveShifts[octave][length] = candidateOctave - octave;
+                                    break search;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (missing.size() == OCTAVES * LENGTHS.length) {
+            YmmersiveMelodies.getInstance().getLogger().at(Level.WARNING).log("No sound events found for instrument %s", instrument);
+        } else if (!missing.isEmpty()) {
+            YmmersiveMelodies.getInstance().getLogger().at(Level.WARNING).log("Instrument %s is missing %d sound events, using the closest available sample instead: %s", instrument, missing.size(), String.join(", ", missing));
+        }
+
+        return resolved;
+    }
+
+    private record Resolved(int[][] soundEvents, int[][] octaveShifts, float maxDistance) {
+    }
+}
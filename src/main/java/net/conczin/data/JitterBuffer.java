@@ -0,0 +1,80 @@
+package net.conczin.data;
+
+import java.util.Arrays;
+
+// Sizes the playback lookahead of a world from its recent tick intervals
+public final class JitterBuffer {
+    private static final int WINDOW = 128;
+    private static final int RECOMPUTE_INTERVAL = 20;
+    private static final double PERCENTILE = 0.95;
+
+    // Covers dispatch and the jitter of a single tick beyond the percentile
+    private static final long MARGIN_MS = 20L;
+
+    // The buffer is the playout offset of every note, shrinking it at once would play new notes before queued ones
+    private static final long SHRINK_STEP_MS = 2L;
+
+    private final long[] intervals = new long[WINDOW];
+    private final long[] sorted = new long[WINDOW];
+    private int count;
+    private int index;
+    private int sinceRecompute;
+    private long lastTime;
+    private long targetMs;
+
+    private volatile long bufferMs;
+    private volatile long lateTicks;
+    private volatile long skippedNotes;
+
+    public JitterBuffer(long initialMs) {
+        this.bufferMs = initialMs;
+        this.targetMs = initialMs;
+    }
+
+    // Records the interval since the previous tick, grows the buffer at once and shrinks it a little per tick
+    public void update(long timeMs, long floorMs, long ceilingMs) {
+        long last = lastTime;
+        lastTime = timeMs;
+        if (last == 0) return;
+        long interval = timeMs - last;
+        if (interval <= 0) return;
+
+        if (interval > bufferMs) {
+            lateTicks++;
+        }
+
+        intervals[index] = interval;
+        index = (index + 1) % WINDOW;
+        if (count < WINDOW) count++;
+
+        if (++sinceRecompute >= RECOMPUTE_INTERVAL) {
+            sinceRecompute = 0;
+            System.arraycopy(intervals, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            long percentile = sorted[Math.min(count - 1, (int) (count * PERCENTILE))];
+            targetMs = Math.max(floorMs, Math.min(ceilingMs, percentile + MARGIN_MS));
+        }
+
+        if (targetMs > bufferMs) {
+            bufferMs = targetMs;
+        } else if (targetMs < bufferMs) {
+            bufferMs = Math.max(targetMs, bufferMs - SHRINK_STEP_MS);
+        }
+    }
+
+    public long getBufferMs() {
+        return bufferMs;
+    }
+
+    public void countSkipped(int notes) {
+        skippedNotes += notes;
+    }
+
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    public long getSkippedNotes() {
+        return skippedNotes;
+    }
+}
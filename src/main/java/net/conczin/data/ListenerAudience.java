@@ -0,0 +1,93 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.component.ComponentAccessor;
+import com.hypixel.hytale.component.Ref;
+import com.hypixel.hytale.component.spatial.SpatialResource;
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.server.core.modules.entity.EntityModule;
+import com.hypixel.hytale.server.core.modules.entity.component.TransformComponent;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+
+import java.util.Arrays;
+import java.util.List;
+
+// The players in hearing range of an emitter, resolved once and reused for every note
+public final class ListenerAudience {
+    // Listeners move too, so even a resting emitter refreshes now and then
+    private static final long MAX_AGE_MS = 250L;
+    private static final double MOVE_THRESHOLD_SQ = 1.0;
+
+    // Fractions of the hearing range where the level of detail drops
+    private static final double NEAR_RANGE = 0.4;
+    private static final double MID_RANGE = 0.7;
+
+    private PlayerRef[] listeners = new PlayerRef[16];
+    private byte[] tiers = new byte[16];
+    private int size;
+
+    private boolean resolved;
+    private double x, y, z;
+    private long resolvedAt;
+
+    public void resolve(Vector3d position, double maxDistance, ComponentAccessor<EntityStore> componentAccessor, long now) {
+        if (resolved && now - resolvedAt >= 0 && now - resolvedAt < MAX_AGE_MS) {
+            double dx = position.x - x, dy = position.y - y, dz = position.z - z;
+            if (dx * dx + dy * dy + dz * dz < MOVE_THRESHOLD_SQ) return;
+        }
+
+        Arrays.fill(listeners, 0, size, null);
+        size = 0;
+
+        SpatialResource<Ref<EntityStore>, EntityStore> spatialresource = componentAccessor.getResource(
+                EntityModule.get().getPlayerSpatialResourceType()
+        );
+        List<Ref<EntityStore>> list = SpatialResource.getThreadLocalReferenceList();
+        spatialresource.getSpatialStructure().collect(position, maxDistance, list);
+        double nearSq = maxDistance * maxDistance * NEAR_RANGE * NEAR_RANGE;
+        double midSq = maxDistance * maxDistance * MID_RANGE * MID_RANGE;
+        for (Ref<EntityStore> ref : list) {
+            PlayerRef playerref = componentAccessor.getComponent(ref, PlayerRef.getComponentType());
+            if (playerref == null) continue;
+            if (size == listeners.length) {
+                listeners = Arrays.copyOf(listeners, size * 2);
+                tiers = Arrays.copyOf(tiers, size * 2);
+            }
+
+            // Listeners without a known position count as near
+            int tier = MelodyTimeline.DETAIL_NEAR;
+            TransformComponent transform = componentAccessor.getComponent(ref, TransformComponent.getComponentType());
+            if (transform != null) {
+                Vector3d listenerPosition = transform.getPosition();
+                double dx = listenerPosition.x - position.x, dy = listenerPosition.y - position.y, dz = listenerPosition.z - position.z;
+                double distSq = dx * dx + dy * dy + dz * dz;
+                tier = distSq <= nearSq ? MelodyTimeline.DETAIL_NEAR : distSq <= midSq ? MelodyTimeline.DETAIL_MID : MelodyTimeline.DETAIL_FAR;
+            }
+            tiers[size] = (byte) tier;
+            listeners[size++] = playerref;
+        }
+
+        resolved = true;
+        x = position.x;
+        y = position.y;
+        z = position.z;
+        resolvedAt = now;
+    }
+
+    public void invalidate() {
+        resolved = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PlayerRef get(int i) {
+        return listeners[i];
+    }
+
+    // Distance tier, notes with a lower level of detail are not sent to this listener
+    public int tier(int i) {
+        return tiers[i];
+    }
+}
@@ -7,9 +7,9 @@ import net.conczin.utils.RecordCodec;
 import java.util.Collections;
 import java.util.List;
 
-public record Melody(String name, List<Track> tracks, int duration) {
+public record Melody(String name, List<Track> tracks, int duration, MelodyTimeline timeline) {
     public Melody(String name, List<Track> tracks) {
-        this(name, tracks, computeDuration(tracks));
+        this(name, tracks, computeDuration(tracks), MelodyTimeline.of(tracks));
     }
 
     public static final RecordCodec<Melody> CODEC = RecordCodec.composite(
@@ -8,11 +8,17 @@ import com.hypixel.hytale.assetstore.map.DefaultAssetMap;
 import com.hypixel.hytale.assetstore.map.JsonAssetWithMap;
 import com.hypixel.hytale.codec.Codec;
 import com.hypixel.hytale.codec.KeyedCodec;
+import net.conczin.YmmersiveMelodies;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 
 public class MelodyAsset implements JsonAssetWithMap<String, DefaultAssetMap<String, MelodyAsset>> {
     public static final AssetBuilderCodec<String, MelodyAsset> CODEC = AssetBuilderCodec.builder(
@@ -36,11 +42,16 @@ public class MelodyAsset implements JsonAssetWithMap<String, DefaultAssetMap<Str
                     Path path = assetExtraInfo.getAssetPath();
                     if (path == null) return;
                     Path midiPath = path.getParent().resolve(path.getFileName().toString().replaceFirst("\\.json$", ".midi"));
-                    try (InputStream midiStream = Files.newInputStream(midiPath)) {
-                        o.melody = new Melody(o.name, MidiParser.parseMidi(midiStream));
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                        // Nop
+
+                    o.midiPath = midiPath;
+                    if (YmmersiveMelodies.getInstance().getMelodiesConfig().lazyMelodies) {
+                        // Parsed on first use, the file may have changed since last time
+                        errors.remove(midiPath);
+                        MelodyCache.invalidate(midiPath);
+                    } else {
+                        // Parsed in the background, handed out once the parse is done
+                        String name = o.name;
+                        o.loading = CompletableFuture.supplyAsync(() -> load(name, midiPath), LOADER);
                     }
                 }
             })
@@ -49,6 +60,14 @@ public class MelodyAsset implements JsonAssetWithMap<String, DefaultAssetMap<Str
 
     private static AssetStore<String, MelodyAsset, DefaultAssetMap<String, MelodyAsset>> ASSET_STORE;
 
+    // Bumped whenever melody assets are loaded or removed, invalidating resolved handles
+    private static volatile int generation;
+
+    private static final ExecutorService LOADER = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Files which failed to load, a broken file doesn't abort loading the others
+    private static final Map<Path, String> errors = new ConcurrentHashMap<>();
+
     public static AssetStore<String, MelodyAsset, DefaultAssetMap<String, MelodyAsset>> getAssetStore() {
         if (ASSET_STORE == null) {
             ASSET_STORE = AssetRegistry.getAssetStore(MelodyAsset.class);
@@ -56,19 +75,57 @@ public class MelodyAsset implements JsonAssetWithMap<String, DefaultAssetMap<Str
         return ASSET_STORE;
     }
 
+    public static int getGeneration() {
+        return generation;
+    }
+
+    public static void invalidate() {
+        generation++;
+    }
+
+    public static Map<Path, String> getErrors() {
+        return errors;
+    }
+
+    private static Melody load(String name, Path midiPath) {
+        try {
+            Melody melody = new Melody(name, MelodyDiskCache.load(Files.readAllBytes(midiPath)));
+            errors.remove(midiPath);
+            return melody;
+        } catch (IOException | RuntimeException e) {
+            errors.put(midiPath, String.valueOf(e.getMessage()));
+            YmmersiveMelodies.getInstance().getLogger().at(Level.WARNING).log("Failed to load melody %s: %s", midiPath, e.getMessage());
+            return null;
+        }
+    }
+
     private String id;
     private AssetExtraInfo.Data data;
 
     private String name;
 
-    private Melody melody;
+    private Path midiPath;
+    private CompletableFuture<Melody> loading;
 
     @Override
     public String getId() {
         return id;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    // Null while the melody failed to load or is still being parsed
     public Melody getMelody() {
-        return melody;
+        if (loading != null) return loading.getNow(null);
+        if (midiPath == null || errors.containsKey(midiPath)) return null;
+        return MelodyCache.get(midiPath, () -> load(name, midiPath), LOADER, YmmersiveMelodies.getInstance().getMelodiesConfig().melodyCacheNotes);
+    }
+
+    // Whether a missing melody may still show up, because it is still being parsed or parsed lazily and didn't fail
+    public boolean isPending() {
+        if (loading != null) return !loading.isDone();
+        return midiPath != null && !errors.containsKey(midiPath);
     }
 }
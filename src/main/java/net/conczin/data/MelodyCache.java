@@ -0,0 +1,128 @@
+package net.conczin.data;
+
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// Lazily parsed melodies, evicted least recently used first once their total note count exceeds the budget
+public final class MelodyCache {
+    private static final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Evicted melodies still held by a playback session stay pinned and are handed out again
+    private static final Map<Path, WeakReference<Melody>> pinned = new HashMap<>();
+
+    // Loads in flight, a load whose token got invalidated meanwhile is discarded
+    private static final Map<Path, Object> loading = new HashMap<>();
+
+    private static long weight;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    private MelodyCache() {
+    }
+
+    // Returns the cached melody, or starts loading it on the executor and returns null until it is ready
+    public static Melody get(Path path, Supplier<Melody> loader, Executor executor, long maxWeight) {
+        Object token;
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                hits++;
+                return entry.melody;
+            }
+
+            WeakReference<Melody> reference = pinned.remove(path);
+            Melody inUse = reference == null ? null : reference.get();
+            if (inUse != null) {
+                hits++;
+                put(path, inUse, maxWeight);
+                return inUse;
+            }
+
+            if (loading.containsKey(path)) return null;
+            misses++;
+            token = new Object();
+            loading.put(path, token);
+        }
+
+        executor.execute(() -> {
+            Melody melody = null;
+            try {
+                melody = loader.get();
+            } finally {
+                synchronized (entries) {
+                    if (loading.remove(path, token) && melody != null) {
+                        put(path, melody, maxWeight);
+                    }
+                }
+            }
+        });
+        return null;
+    }
+
+    public static void invalidate(Path path) {
+        synchronized (entries) {
+            Entry entry = entries.remove(path);
+            if (entry != null) weight -= entry.weight;
+            pinned.remove(path);
+            loading.remove(path);
+        }
+    }
+
+    private static void put(Path path, Melody melody, long maxWeight) {
+        Entry entry = new Entry(melody, Math.max(1, melody.timeline().size()));
+        entries.put(path, entry);
+        weight += entry.weight;
+
+        // The entry just added is never evicted, even if it alone exceeds the budget
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (weight > maxWeight && entries.size() > 1 && iterator.hasNext()) {
+            Map.Entry<Path, Entry> eldest = iterator.next();
+            if (eldest.getValue() == entry) continue;
+            iterator.remove();
+            weight -= eldest.getValue().weight;
+            pinned.put(eldest.getKey(), new WeakReference<>(eldest.getValue().melody));
+            evictions++;
+        }
+        pinned.values().removeIf(reference -> reference.get() == null);
+    }
+
+    public static int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public static long getWeight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    public static long getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    public static long getEvictions() {
+        synchronized (entries) {
+            return evictions;
+        }
+    }
+
+    private record Entry(Melody melody, int weight) {
+    }
+}
@@ -0,0 +1,167 @@
+package net.conczin.data;
+
+import net.conczin.YmmersiveMelodies;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+// Parsed MIDI tracks stored by the SHA-256 of the source file, so unchanged files skip the parser on the next start
+public final class MelodyDiskCache {
+    private static final int MAGIC = 0x594D4D43; // YMMC
+    private static final int VERSION = 1; // Bump whenever the parser output changes
+    private static final String EXTENSION = ".bin";
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+
+    private MelodyDiskCache() {
+    }
+
+    static List<Melody.Track> load(byte[] midi) {
+        Path directory = getDirectory();
+        if (directory == null) return MidiParser.parseMidi(midi);
+
+        Path file = directory.resolve(hash(midi) + EXTENSION);
+        List<Melody.Track> tracks = read(file);
+        if (tracks != null) return tracks;
+
+        // Missing, outdated or corrupt, parse and replace the entry
+        tracks = MidiParser.parseMidi(midi);
+        write(directory, file, tracks);
+        return tracks;
+    }
+
+    // Drops old entries, e.g. those of edited or removed files, entries still in use are simply parsed and written again
+    public static void prune() {
+        Path directory = getDirectory();
+        if (directory == null || !Files.isDirectory(directory)) return;
+
+        long threshold = System.currentTimeMillis() - MAX_AGE_MS;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(EXTENSION)).forEach(file -> {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < threshold) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    warn("Failed to prune melody cache entry %s: %s", file, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            warn("Failed to prune melody cache %s: %s", directory, e.getMessage());
+        }
+    }
+
+    private static Path getDirectory() {
+        YmmersiveMelodies plugin = YmmersiveMelodies.getInstance();
+        if (!plugin.getMelodiesConfig().diskCache) return null;
+        return plugin.getDataDirectory().resolve("MelodyCache");
+    }
+
+    // Read onto the heap rather than mapped, a live mapping would block replacing or pruning the file on Windows
+    private static List<Melody.Track> read(Path file) {
+        try {
+            return decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            warn("Failed to read melody cache entry %s: %s", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<Melody.Track> decode(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            int trackCount = buffer.getInt();
+            List<Melody.Track> tracks = new ArrayList<>(Math.min(trackCount, 256));
+            for (int t = 0; t < trackCount; t++) {
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                int noteCount = buffer.getInt();
+                if (noteCount < 0 || noteCount > buffer.remaining() / 11) return null;
+                List<Melody.Note> notes = new ArrayList<>(noteCount);
+                for (int i = 0; i < noteCount; i++) {
+                    int note = buffer.get() & 0x7F;
+                    int velocity = buffer.getShort() & 0xFFFF;
+                    int time = buffer.getInt();
+                    int length = buffer.getInt();
+                    notes.add(new Melody.Note(note, velocity, time, length));
+                }
+                tracks.add(new Melody.Track(new String(name, StandardCharsets.UTF_8), notes));
+            }
+            return buffer.hasRemaining() ? null : tracks;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void write(Path directory, Path file, List<Melody.Track> tracks) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tracks.size());
+            for (Melody.Track track : tracks) {
+                byte[] name = track.name().getBytes(StandardCharsets.UTF_8);
+                int nameLength = Math.min(name.length, 0xFFFF);
+                out.writeShort(nameLength);
+                out.write(name, 0, nameLength);
+                out.writeInt(track.notes().size());
+                for (Melody.Note note : track.notes()) {
+                    out.writeByte(note.note());
+                    out.writeShort(Math.min(note.velocity(), 0xFFFF));
+                    out.writeInt(note.time());
+                    out.writeInt(note.length());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // Written aside and moved in place, concurrent loads never see a partial entry
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            warn("Failed to write melody cache entry %s: %s", file, e.getMessage());
+        }
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void warn(String message, Object first, Object second) {
+        YmmersiveMelodies.getInstance().getLogger().at(Level.WARNING).log(message, first, second);
+    }
+}
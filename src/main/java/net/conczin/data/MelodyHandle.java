@@ -0,0 +1,72 @@
+package net.conczin.data;
+
+import java.util.UUID;
+
+// A resolved "uuid:name" or asset melody id, valid until the registry or the melody assets change
+public final class MelodyHandle {
+    private final String id;
+    private final Melody melody;
+    private final int registryVersion;
+    private final int assetGeneration;
+
+    // Not loaded yet, asked for again until it is
+    private final boolean pending;
+
+    private CompiledMelody compiled;
+    private String compiledInstrument;
+
+    private MelodyHandle(String id, Melody melody, int registryVersion, int assetGeneration, boolean pending) {
+        this.id = id;
+        this.melody = melody;
+        this.registryVersion = registryVersion;
+        this.assetGeneration = assetGeneration;
+        this.pending = pending;
+    }
+
+    static MelodyHandle resolve(YmmersiveMelodiesRegistry registry, String id) {
+        int assetGeneration = MelodyAsset.getGeneration();
+        Melody melody = null;
+        boolean pending = false;
+        if (id.contains(":")) {
+            String[] split = id.split(":", 2);
+            try {
+                melody = registry.get(UUID.fromString(split[0]), split[1]);
+            } catch (IllegalArgumentException e) {
+                // Not a valid player id
+            }
+        } else {
+            MelodyAsset asset = MelodyAsset.getAssetStore().getAssetMap().getAsset(id);
+            if (asset != null) {
+                melody = asset.getMelody();
+                pending = melody == null && asset.isPending();
+            }
+        }
+        return new MelodyHandle(id, melody, registry.getVersion(), assetGeneration, pending);
+    }
+
+    public boolean isCurrent(YmmersiveMelodiesRegistry registry, String id) {
+        return !pending
+                && this.id.equals(id)
+                && registryVersion == registry.getVersion()
+                && assetGeneration == MelodyAsset.getGeneration();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Melody getMelody() {
+        return melody;
+    }
+
+    // The last compiled instrument is kept, which is usually the only one
+    public CompiledMelody compile(String instrument) {
+        CompiledMelody compiled = this.compiled;
+        if (compiled == null || !instrument.equals(compiledInstrument) || !compiled.isCurrent()) {
+            compiled = CompiledMelody.of(melody, instrument);
+            this.compiled = compiled;
+            this.compiledInstrument = instrument;
+        }
+        return compiled;
+    }
+}
@@ -0,0 +1,134 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.component.Ref;
+import com.hypixel.hytale.component.Resource;
+import com.hypixel.hytale.component.ResourceType;
+import com.hypixel.hytale.server.core.entity.InteractionContext;
+import com.hypixel.hytale.server.core.inventory.ItemStack;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import net.conczin.YmmersiveMelodies;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MelodyPlaybackSessions implements Resource<EntityStore> {
+    private static final long PRUNE_INTERVAL_MS = 1000L;
+
+    private Map<Ref<EntityStore>, PlaybackSession> sessions = new HashMap<>();
+    private long lastPrune;
+
+    // Counts system ticks, so holding is measured in missed ticks rather than time which stalls with the world
+    private long tick;
+
+    // Sync and dispatch state lives and dies with the world, clones share it
+    private final MelodySyncRegistry syncRegistry;
+    private final NoteDispatcher dispatcher;
+    private final JitterBuffer jitterBuffer;
+
+    // Scratch space of MelodyPlaybackSystem
+    private final List<PlaybackSession> due = new ArrayList<>();
+    private final NoteScheduler.Batch batch = new NoteScheduler.Batch();
+
+    public static ResourceType<EntityStore, MelodyPlaybackSessions> getResourceType() {
+        return YmmersiveMelodies.getInstance().getMelodyPlaybackSessions();
+    }
+
+    public MelodyPlaybackSessions() {
+        this.syncRegistry = new MelodySyncRegistry();
+        this.dispatcher = new NoteDispatcher(
+                "Ymmersive Melodies Note Scheduler",
+                YmmersiveMelodies.getInstance().getMelodiesConfig().getDispatcherShards()
+        );
+        this.jitterBuffer = new JitterBuffer(150L);
+    }
+
+    public MelodyPlaybackSessions(@Nonnull MelodyPlaybackSessions other) {
+        this.sessions = other.sessions;
+        this.tick = other.tick;
+        this.syncRegistry = other.syncRegistry;
+        this.dispatcher = other.dispatcher;
+        this.jitterBuffer = other.jitterBuffer;
+    }
+
+    // Returns the live session for the held item, only decoding the item metadata when the item changed
+    public PlaybackSession sync(Ref<EntityStore> ref, InteractionContext context, ItemStack itemInHand) {
+        PlaybackSession session = sessions.get(ref);
+        if (session != null && session.isHolding(itemInHand)) {
+            return session;
+        }
+
+        MelodyProgress stored = itemInHand.getFromMetadataOrDefault("MelodyProgress", MelodyProgress.CODEC);
+        if (session == null) {
+            session = new PlaybackSession();
+            sessions.put(ref, session);
+            session.load(stored);
+        } else if (!session.isCheckpointOf(stored)) {
+            // Another item, or the melody got changed, persist where we were and take over the new state
+            session.save();
+            session.load(stored);
+        }
+        session.bind(itemInHand, context.getHeldItemContainer(), (short) context.getHeldItemSlot());
+        return session;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    long nextTick() {
+        return ++tick;
+    }
+
+    public boolean isEmpty() {
+        return sessions.isEmpty();
+    }
+
+    public Set<Map.Entry<Ref<EntityStore>, PlaybackSession>> entries() {
+        return sessions.entrySet();
+    }
+
+    public MelodySyncRegistry getSyncRegistry() {
+        return syncRegistry;
+    }
+
+    public NoteDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    public List<PlaybackSession> getDue() {
+        return due;
+    }
+
+    public NoteScheduler.Batch getBatch() {
+        return batch;
+    }
+
+    public PlaybackSession get(Ref<EntityStore> ref) {
+        return sessions.get(ref);
+    }
+
+    // Drops the live state without saving, e.g. because a new melody has been written to the item
+    public void remove(Ref<EntityStore> ref) {
+        sessions.remove(ref);
+    }
+
+    public void prune(long now) {
+        if (now - lastPrune < PRUNE_INTERVAL_MS) return;
+        lastPrune = now;
+        sessions.keySet().removeIf(ref -> !ref.isValid());
+    }
+
+    @Nonnull
+    @Override
+    public Resource<EntityStore> clone() {
+        return new MelodyPlaybackSessions(this);
+    }
+}
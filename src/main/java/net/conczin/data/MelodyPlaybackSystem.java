@@ -0,0 +1,251 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.component.Ref;
+import com.hypixel.hytale.component.Store;
+import com.hypixel.hytale.component.system.tick.TickingSystem;
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.Position;
+import com.hypixel.hytale.protocol.SoundCategory;
+import com.hypixel.hytale.protocol.packets.world.PlaySoundEvent3D;
+import com.hypixel.hytale.server.core.modules.entity.component.TransformComponent;
+import com.hypixel.hytale.server.core.modules.time.TimeResource;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import net.conczin.YmmersiveMelodies;
+import net.conczin.YmmersiveMelodiesConfig;
+import net.conczin.utils.Utils;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+// Drives all playback sessions of a world in one pass per tick
+public class MelodyPlaybackSystem extends TickingSystem<EntityStore> {
+    // Sessions no longer kept alive by their interaction are paused, counted in ticks of this system
+    // The interaction may tick before or after this system, so a session held every tick is at most one tick behind
+    private static final long HOLD_TIMEOUT_TICKS = 2L;
+    private static final long CHECKPOINT_INTERVAL_MS = 5000L;
+
+    private static final float MAX_ENSEMBLE_BOOST = 2.0f;
+
+    // Notes in the same slice of this length count as simultaneous for the voice budget
+    private static final long VOICE_SLICE_MS = 50L;
+
+    // Longer gaps, e.g. after a pause, are never compressed
+    private static final long MAX_CATCH_UP_MS = 2000L;
+
+    @Override
+    public void tick(float dt, int systemIndex, @Nonnull Store<EntityStore> store) {
+        // Get time
+        Instant timeResource = store.getResource(TimeResource.getResourceType()).getNow();
+        long timeMs = timeResource.getEpochSecond() * 1000L + timeResource.getNano() / 1_000_000L;
+
+        // Also runs when nobody plays anymore, so abandoned anchors don't linger
+        MelodyPlaybackSessions sessions = store.getResource(MelodyPlaybackSessions.getResourceType());
+        long tick = sessions.nextTick();
+        MelodySyncRegistry syncRegistry = sessions.getSyncRegistry();
+        syncRegistry.reap(timeMs);
+
+        // The lookahead follows the actual tick rate and its jitter
+        YmmersiveMelodiesConfig config = YmmersiveMelodies.getInstance().getMelodiesConfig();
+        JitterBuffer jitterBuffer = sessions.getJitterBuffer();
+        jitterBuffer.update(timeMs, config.bufferFloorMs, config.bufferCeilingMs);
+        if (sessions.isEmpty()) return;
+        long buffer = jitterBuffer.getBufferMs();
+        CatchUpMode mode = config.getCatchUpMode();
+
+        sessions.prune(timeMs);
+
+        // Advance all sessions and collect those with notes due
+        YmmersiveMelodiesRegistry registry = store.getResource(YmmersiveMelodiesRegistry.getResourceType());
+        List<PlaybackSession> due = sessions.getDue();
+        for (Map.Entry<Ref<EntityStore>, PlaybackSession> entry : sessions.entries()) {
+            if (advance(entry.getKey(), entry.getValue(), store, registry, syncRegistry, jitterBuffer, buffer, mode, tick, timeMs)) {
+                due.add(entry.getValue());
+            }
+        }
+
+        // Performers playing the same part in sync form an ensemble which is only emitted once
+        InstrumentSoundBank bank = InstrumentSoundBank.get();
+        NoteScheduler.Batch batch = sessions.getBatch();
+        for (int i = 0; i < due.size(); i++) {
+            PlaybackSession leader = due.get(i);
+            if (leader.ensembleLeader != null) continue;
+
+            int voices = 1;
+            double x = leader.x, y = leader.y, z = leader.z;
+            for (int j = i + 1; j < due.size(); j++) {
+                PlaybackSession member = due.get(j);
+                if (member.ensembleLeader == null && leader.isInEnsembleWith(member)) {
+                    member.ensembleLeader = leader;
+                    voices++;
+                    x += member.x;
+                    y += member.y;
+                    z += member.z;
+                }
+            }
+
+            emit(leader, x / voices, y / voices, z / voices, voices, store, bank, batch, jitterBuffer, buffer, timeMs);
+        }
+        for (PlaybackSession session : due) {
+            session.ensembleLeader = null;
+        }
+        due.clear();
+
+        // Single hand-off of everything this world emitted this tick
+        sessions.getDispatcher().schedule(batch, config.maxVoices, VOICE_SLICE_MS, timeMs);
+    }
+
+    // Advances timing and returns whether notes are due in this tick's window
+    private static boolean advance(Ref<EntityStore> ref, PlaybackSession session, Store<EntityStore> store, YmmersiveMelodiesRegistry registry, MelodySyncRegistry syncRegistry, JitterBuffer jitterBuffer, long buffer, CatchUpMode mode, long tick, long timeMs) {
+        if (!ref.isValid()) return false;
+        MelodyProgress progress = session.progress;
+        if (progress.melody.isEmpty()) {
+            // Lets the melody be evicted once nobody plays it anymore
+            session.handle = null;
+            return false;
+        }
+
+        // Only play while the interaction keeps the session alive, persist once when that stops
+        if (tick - session.heldTick > HOLD_TIMEOUT_TICKS) {
+            if (!session.paused) {
+                session.paused = true;
+                session.save();
+            }
+            return false;
+        }
+        boolean resumed = session.paused;
+        session.paused = false;
+
+        // Get position
+        TransformComponent component = store.getComponent(ref, TransformComponent.getComponentType());
+        if (component == null) return false;
+        Vector3d position = component.getPosition();
+
+        // Get melody, the session keeps it resolved until the melody id or the melodies change
+        MelodyHandle handle = session.handle;
+        if (handle == null || !handle.isCurrent(registry, progress.melody)) {
+            handle = registry.resolve(progress.melody);
+            session.handle = handle;
+        }
+        Melody melody = handle.getMelody();
+        if (melody == null) return false;
+
+        int duration = melody.duration();
+
+        long prevPlaybackTime;
+        long playbackTime;
+
+        if (MelodyPlaybackInteraction.multiplayerMode) {
+            if (session.uuid == null) {
+                session.uuid = Utils.getUUID(ref);
+            }
+
+            // Sync: initialize shared time anchor on first tick
+            if (progress.startWorldTime == 0) {
+                progress.startWorldTime = syncRegistry.getOrCreateAnchor(session.uuid, progress.melody, position, timeMs, duration);
+                progress.worldTime = timeMs;
+                progress.time = 0;
+                return false;
+            }
+
+            // Derive playback position from shared anchor
+            playbackTime = timeMs - progress.startWorldTime;
+            prevPlaybackTime = progress.worldTime - progress.startWorldTime;
+        } else {
+            // Singleplayer time stands still while paused
+            if (resumed) progress.worldTime = timeMs;
+
+            prevPlaybackTime = progress.time;
+            playbackTime = prevPlaybackTime + timeMs - progress.worldTime;
+        }
+
+        long gap = playbackTime - prevPlaybackTime;
+        if (gap <= 0) return false;
+
+        if (MelodyPlaybackInteraction.multiplayerMode) {
+            syncRegistry.keepAlive(session.uuid, progress.melody, progress.startWorldTime, position, timeMs);
+        }
+
+        // Notes due in [start, end), a gap longer than the buffer is handled by the catch-up mode
+        MelodyTimeline timeline = melody.timeline();
+        long start = prevPlaybackTime;
+        long end = prevPlaybackTime + Math.min(gap, buffer);
+        boolean skip = mode == CatchUpMode.SKIP_TO_NOW || (mode == CatchUpMode.COMPRESS && gap > MAX_CATCH_UP_MS);
+        if (gap > buffer && skip) {
+            end = playbackTime;
+            start = playbackTime - buffer;
+            int skipped = timeline.seek(start, session.cursor) - timeline.seek(prevPlaybackTime, session.cursor);
+            if (skipped > 0) jitterBuffer.countSkipped(skipped);
+        }
+
+        if (mode == CatchUpMode.COMPRESS && !skip) {
+            // Owe the rest of the gap, the next ticks play it back at a faster pace
+            progress.worldTime = timeMs - (playbackTime - end);
+            progress.time = end;
+        } else {
+            progress.worldTime = timeMs;
+            progress.time = mode == CatchUpMode.STRICT && !MelodyPlaybackInteraction.multiplayerMode ? end : playbackTime;
+        }
+
+        // A window longer than the time since the last one, i.e. owed time, is played faster instead of overlapping the next
+        long span = Math.max(1L, Math.min(end - start, timeMs - session.advancedAt));
+        session.advancedAt = timeMs;
+
+        int first = timeline.seek(start, session.cursor);
+        int last = first;
+        while (last < timeline.size() && timeline.time(last) < end) last++;
+        session.cursor = last;
+        session.setWindow(first, last, start, end, span, progress.startWorldTime, position);
+
+        // Auto-stop: song finished, clear melody
+        if (progress.time >= duration) {
+            if (MelodyPlaybackInteraction.multiplayerMode) {
+                syncRegistry.removePlayer(session.uuid, progress.melody);
+            }
+            progress.melody = "";
+            progress.time = 0;
+            progress.startWorldTime = 0;
+            progress.worldTime = 0;
+            session.save();
+        } else if (timeMs - session.getSavedWorldTime() >= CHECKPOINT_INTERVAL_MS) {
+            // Checkpoint now and then so resuming after a restart or logout loses little
+            session.save();
+        }
+
+        return last > first;
+    }
+
+    // Emits the window of a session, or of a whole ensemble from its centroid
+    private static void emit(PlaybackSession session, double x, double y, double z, int voices, Store<EntityStore> store, InstrumentSoundBank bank, NoteScheduler.Batch batch, JitterBuffer jitterBuffer, long buffer, long timeMs) {
+        // Reuse the listeners of previous ticks until the emitter moved or they got stale
+        // Timing has advanced already, so nobody hearing the emitter only skips the note work
+        ListenerAudience audience = session.audience;
+        audience.resolve(new Vector3d(x, y, z), bank.maxDistance(session.instrument), store, timeMs);
+        if (audience.size() == 0) return;
+
+        // More voices are louder, but only up to a point
+        float boost = (float) Math.min(Math.sqrt(voices), MAX_ENSEMBLE_BOOST);
+
+        // TODO: Track filter
+        CompiledMelody compiled = session.handle.compile(session.instrument);
+        MelodyTimeline timeline = compiled.timeline();
+        Position position = new Position(x, y, z);
+        for (int i = session.first; i < session.last; i++) {
+            if (compiled.soundEvent(i) < 0) continue;
+            long delay = buffer - session.windowSpan + (timeline.time(i) - session.windowStart) * session.windowSpan / (session.windowEnd - session.windowStart);
+            if (delay <= 0) {
+                jitterBuffer.countSkipped(1);
+                continue;
+            }
+
+            PlaySoundEvent3D soundEvent = new PlaySoundEvent3D(compiled.soundEvent(i), SoundCategory.SFX, position, compiled.volume(i) * boost, compiled.pitch(i));
+            int priority = compiled.priority(i);
+            int detail = timeline.detail(i);
+            for (int j = 0; j < audience.size(); j++) {
+                if (audience.tier(j) > detail) continue;
+                batch.add(audience.get(j), soundEvent, delay, priority);
+            }
+        }
+    }
+}
@@ -1,75 +1,309 @@
 package net.conczin.data;
 
 import com.hypixel.hytale.math.vector.Vector3d;
+import net.conczin.YmmersiveMelodies;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
+// Sync anchors of one world, players in other worlds never sync to each other
 public final class MelodySyncRegistry {
     private static final long STALE_THRESHOLD_MS = 500L;
-    private static final double SYNC_RANGE_SQ = 40.0 * 40.0;
+    private static final double SYNC_RANGE = 40.0;
+    private static final double SYNC_RANGE_SQ = SYNC_RANGE * SYNC_RANGE;
+    private static final long REAP_INTERVAL_MS = 1000L;
 
-    private static final ConcurrentHashMap<String, List<Anchor>> anchors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AnchorGrid> anchors = new ConcurrentHashMap<>();
 
-    private MelodySyncRegistry() {
-    }
+    // One slot per performer, updated in place every tick
+    private final ConcurrentHashMap<UUID, Slot> slots = new ConcurrentHashMap<>();
 
-    public static long getOrCreateAnchor(UUID playerId, String melodyId, Vector3d position, long currentWorldTime, long melodyDurationMs) {
-        long[] result = new long[1];
-        anchors.compute(melodyId, (key, list) -> {
-            if (list == null) list = new ArrayList<>();
+    private final AtomicLong lastReap = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
 
-            // Single pass: prune stale entries and find closest active anchor
-            Anchor closest = null;
-            double closestDistSq = Double.MAX_VALUE;
-            Iterator<Anchor> it = list.iterator();
-            while (it.hasNext()) {
-                Anchor a = it.next();
-                if (currentWorldTime - a.lastActive > STALE_THRESHOLD_MS) {
-                    it.remove();
-                    continue;
-                }
-                if (currentWorldTime - a.startWorldTime > melodyDurationMs) continue;
-                double distSq = a.distSq(position);
-                if (distSq <= SYNC_RANGE_SQ && distSq < closestDistSq) {
-                    closestDistSq = distSq;
-                    closest = a;
-                }
-            }
+    public long getOrCreateAnchor(UUID playerId, String melodyId, Vector3d position, long currentWorldTime, long melodyDurationMs) {
+        // At capacity new performers may still sync to others, but don't become anchors themselves
+        if (!slots.containsKey(playerId) && isFull()) {
+            long[] result = {currentWorldTime};
+            anchors.computeIfPresent(melodyId, (key, grid) -> {
+                result[0] = grid.findClosest(position, currentWorldTime, melodyDurationMs, currentWorldTime);
+                return grid;
+            });
+            return result[0];
+        }
+
+        Slot slot = slots.computeIfAbsent(playerId, Slot::new);
+
+        // A performer only plays one melody at a time
+        String previousMelodyId = slot.melodyId;
+        if (previousMelodyId != null && !previousMelodyId.equals(melodyId)) {
+            removePlayer(playerId, previousMelodyId);
+            slot = slots.computeIfAbsent(playerId, Slot::new);
+        }
+
+        Slot finalSlot = slot;
+        long[] result = new long[1];
+        anchors.compute(melodyId, (key, grid) -> {
+            if (grid == null) grid = new AnchorGrid();
+            grid.pruneIfDue(currentWorldTime);
 
             // Sync to nearby player's anchor or start fresh
-            long startTime = closest != null ? closest.startWorldTime : currentWorldTime;
-            list.add(new Anchor(playerId, startTime, position.x, position.y, position.z, currentWorldTime));
+            long startTime = grid.findClosest(position, currentWorldTime, melodyDurationMs, currentWorldTime);
+            grid.attach(finalSlot, key, startTime, position, currentWorldTime);
             result[0] = startTime;
-            return list;
+            return grid;
         });
         return result[0];
     }
 
-    public static void removePlayer(UUID playerId, String melodyId) {
-        anchors.computeIfPresent(melodyId, (key, list) -> {
-            list.removeIf(a -> a.playerId.equals(playerId));
-            return list.isEmpty() ? null : list;
+    public void removePlayer(UUID playerId, String melodyId) {
+        anchors.computeIfPresent(melodyId, (key, grid) -> {
+            Slot slot = slots.get(playerId);
+            if (slot != null && slot.grid == grid) {
+                grid.detach(slot);
+            }
+            return grid.isEmpty() ? null : grid;
         });
     }
 
-    public static void keepAlive(UUID playerId, String melodyId, long startWorldTime, Vector3d position, long currentWorldTime) {
-        anchors.compute(melodyId, (key, list) -> {
-            if (list == null) list = new ArrayList<>();
-            // Single pass: remove this player's old entry and prune stale anchors
-            list.removeIf(a -> a.playerId.equals(playerId) || currentWorldTime - a.lastActive > STALE_THRESHOLD_MS);
-            list.add(new Anchor(playerId, startWorldTime, position.x, position.y, position.z, currentWorldTime));
-            return list;
+    public void keepAlive(UUID playerId, String melodyId, long startWorldTime, Vector3d position, long currentWorldTime) {
+        // Fast path: still indexed in the same cell, update in place without locking the melody
+        Slot slot = slots.get(playerId);
+        if (slot != null && slot.grid != null && melodyId.equals(slot.melodyId) && slot.cellKey == cellKey(position)) {
+            slot.update(startWorldTime, position, currentWorldTime);
+            return;
+        }
+
+        // Joined late, was pruned or moved into another cell
+        if (slot == null && isFull()) return;
+        if (slot == null || (slot.melodyId != null && !slot.melodyId.equals(melodyId))) {
+            if (slot != null) removePlayer(playerId, slot.melodyId);
+            slot = slots.computeIfAbsent(playerId, Slot::new);
+        }
+        Slot finalSlot = slot;
+        anchors.compute(melodyId, (key, grid) -> {
+            if (grid == null) grid = new AnchorGrid();
+            grid.pruneIfDue(currentWorldTime);
+            grid.attach(finalSlot, key, startWorldTime, position, currentWorldTime);
+            return grid;
         });
     }
 
-    private record Anchor(UUID playerId, long startWorldTime, double x, double y, double z, long lastActive) {
-        double distSq(Vector3d pos) {
-            double dx = pos.x - x, dy = pos.y - y, dz = pos.z - z;
-            return dx * dx + dy * dy + dz * dz;
+    // Evicts stale anchors of all melodies, including those nobody plays anymore, and enforces the anchor cap
+    public void reap(long currentWorldTime) {
+        long last = lastReap.get();
+        if (currentWorldTime - last < REAP_INTERVAL_MS || !lastReap.compareAndSet(last, currentWorldTime)) return;
+
+        for (String melodyId : anchors.keySet()) {
+            anchors.computeIfPresent(melodyId, (key, grid) -> {
+                grid.prune(currentWorldTime);
+                return grid.isEmpty() ? null : grid;
+            });
+        }
+
+        // Over capacity, e.g. after lowering the cap, the least recently active anchors go first
+        int excess = slots.size() - getMaxAnchors();
+        if (excess > 0) {
+            List<Slot> oldest = new ArrayList<>(slots.values());
+            oldest.sort(Comparator.comparingLong(slot -> slot.lastActive));
+            for (int i = 0; i < excess && i < oldest.size(); i++) {
+                Slot slot = oldest.get(i);
+                String melodyId = slot.melodyId;
+                if (melodyId != null) {
+                    removePlayer(slot.playerId, melodyId);
+                } else {
+                    slots.remove(slot.playerId, slot);
+                }
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    public int getAnchorCount() {
+        return slots.size();
+    }
+
+    public int getMelodyCount() {
+        return anchors.size();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    private int getMaxAnchors() {
+        return YmmersiveMelodies.getInstance().getMelodiesConfig().maxSyncAnchors;
+    }
+
+    private boolean isFull() {
+        return slots.size() >= getMaxAnchors();
+    }
+
+    private static long cellKey(int cellX, int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+
+    private static long cellKey(Vector3d position) {
+        return cellKey(cell(position.x), cell(position.z));
+    }
+
+    private static int cell(double coordinate) {
+        return (int) Math.floor(coordinate / SYNC_RANGE);
+    }
+
+    // Slots of one melody bucketed into columns of sync range width, so lookups only check the neighbouring cells
+    // Structural changes happen under the melody's compute lock, slot contents change freely
+    private final class AnchorGrid {
+        private final Map<Long, List<Slot>> cells = new HashMap<>();
+        private int size;
+        private long lastPrune;
+
+        // Returns the start of the closest active anchor in range, or the fallback
+        long findClosest(Vector3d position, long currentWorldTime, long melodyDurationMs, long fallback) {
+            long closestStart = fallback;
+            double closestDistSq = Double.MAX_VALUE;
+            int cellX = cell(position.x);
+            int cellZ = cell(position.z);
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    List<Slot> list = cells.get(cellKey(cellX + dx, cellZ + dz));
+                    if (list == null) continue;
+                    for (int i = 0; i < list.size(); i++) {
+                        Slot slot = list.get(i);
+
+                        // Read a consistent snapshot of the slot
+                        StampedLock lock = slot.lock;
+                        long stamp = lock.tryOptimisticRead();
+                        long startWorldTime = slot.startWorldTime, lastActive = slot.lastActive;
+                        double sx = slot.x, sy = slot.y, sz = slot.z;
+                        if (!lock.validate(stamp)) {
+                            stamp = lock.readLock();
+                            try {
+                                startWorldTime = slot.startWorldTime;
+                                lastActive = slot.lastActive;
+                                sx = slot.x;
+                                sy = slot.y;
+                                sz = slot.z;
+                            } finally {
+                                lock.unlockRead(stamp);
+                            }
+                        }
+
+                        if (currentWorldTime - lastActive > STALE_THRESHOLD_MS) continue;
+                        if (currentWorldTime - startWorldTime > melodyDurationMs) continue;
+                        double ddx = position.x - sx, ddy = position.y - sy, ddz = position.z - sz;
+                        double distSq = ddx * ddx + ddy * ddy + ddz * ddz;
+                        if (distSq <= SYNC_RANGE_SQ && distSq < closestDistSq) {
+                            closestDistSq = distSq;
+                            closestStart = startWorldTime;
+                        }
+                    }
+                }
+            }
+            return closestStart;
+        }
+
+        // Indexes the slot in the cell of its new position
+        void attach(Slot slot, String melodyId, long startWorldTime, Vector3d position, long currentWorldTime) {
+            long key = cellKey(position);
+            if (slot.grid == this) {
+                if (slot.cellKey == key) {
+                    slot.update(startWorldTime, position, currentWorldTime);
+                    return;
+                }
+                unlink(slot);
+            } else {
+                size++;
+            }
+            slot.update(startWorldTime, position, currentWorldTime);
+            slot.melodyId = melodyId;
+            slot.cellKey = key;
+            cells.computeIfAbsent(key, k -> new ArrayList<>(4)).add(slot);
+            slot.grid = this;
+        }
+
+        void detach(Slot slot) {
+            unlink(slot);
+            size--;
+            slot.grid = null;
+            slot.melodyId = null;
+            slots.remove(slot.playerId, slot);
+        }
+
+        private void unlink(Slot slot) {
+            List<Slot> list = cells.get(slot.cellKey);
+            if (list == null) return;
+            list.remove(slot);
+            if (list.isEmpty()) cells.remove(slot.cellKey);
+        }
+
+        // Full sweeps are rate limited, lookups skip stale slots in between
+        void pruneIfDue(long currentWorldTime) {
+            if (currentWorldTime - lastPrune < STALE_THRESHOLD_MS) return;
+            prune(currentWorldTime);
+        }
+
+        void prune(long currentWorldTime) {
+            lastPrune = currentWorldTime;
+            Iterator<List<Slot>> cellIterator = cells.values().iterator();
+            while (cellIterator.hasNext()) {
+                List<Slot> list = cellIterator.next();
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    Slot slot = list.get(i);
+                    if (currentWorldTime - slot.lastActive > STALE_THRESHOLD_MS) {
+                        list.remove(i);
+                        size--;
+                        slot.grid = null;
+                        slot.melodyId = null;
+                        slots.remove(slot.playerId, slot);
+                    }
+                }
+                if (list.isEmpty()) cellIterator.remove();
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private static final class Slot {
+        final UUID playerId;
+        final StampedLock lock = new StampedLock();
+
+        // Owned by the grid lock
+        volatile AnchorGrid grid;
+        volatile String melodyId;
+        volatile long cellKey;
+
+        // Written by the performer's world thread, guarded by the lock
+        long startWorldTime;
+        double x, y, z;
+        volatile long lastActive;
+
+        Slot(UUID playerId) {
+            this.playerId = playerId;
+        }
+
+        void update(long startWorldTime, Vector3d position, long currentWorldTime) {
+            long stamp = lock.writeLock();
+            try {
+                this.startWorldTime = startWorldTime;
+                this.x = position.x;
+                this.y = position.y;
+                this.z = position.z;
+                this.lastActive = currentWorldTime;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
         }
     }
 }
@@ -0,0 +1,205 @@
+package net.conczin.data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// All notes of a melody, merged across tracks and sorted by start time
+public final class MelodyTimeline {
+    // Level of detail, the farthest listener tier a note is still sent to
+    public static final int DETAIL_NEAR = 0;
+    public static final int DETAIL_MID = 1;
+    public static final int DETAIL_FAR = 2;
+
+    // Far listeners get the melody at most this often, mid-range ones a denser melody
+    private static final int FAR_MELODY_SPACING_MS = 250;
+    private static final int MID_MELODY_SPACING_MS = 60;
+    private static final int MAX_MELODY_SPACING_MS = 8000;
+
+    // Shares of all notes still sent to far and mid-range listeners, the melody is thinned further until they fit
+    private static final double FAR_SHARE = 0.3;
+    private static final double MID_SHARE = 0.6;
+
+    private final int[] times;
+    private final int[] notes;
+    private final int[] velocities;
+    private final int[] lengths;
+    private final int[] tracks;
+    private final byte[] details;
+
+    // Compiled forms by instrument, owned by the timeline so they are dropped together with it
+    final Map<String, CompiledMelody> compiled = new ConcurrentHashMap<>();
+
+    private MelodyTimeline(int size) {
+        this.times = new int[size];
+        this.notes = new int[size];
+        this.velocities = new int[size];
+        this.lengths = new int[size];
+        this.tracks = new int[size];
+        this.details = new byte[size];
+    }
+
+    public static MelodyTimeline of(List<Melody.Track> tracks) {
+        int size = 0;
+        for (Melody.Track track : tracks) {
+            size += track.notes().size();
+        }
+
+        // Sort by time, keeping track and insertion order for equal times
+        long[] keys = new long[size];
+        Melody.Note[] flat = new Melody.Note[size];
+        int[] trackOf = new int[size];
+        int i = 0;
+        int trackIndex = 0;
+        for (Melody.Track track : tracks) {
+            for (Melody.Note note : track.notes()) {
+                keys[i] = ((long) note.time() << 32) | i;
+                flat[i] = note;
+                trackOf[i] = trackIndex;
+                i++;
+            }
+            trackIndex++;
+        }
+        Arrays.sort(keys);
+
+        MelodyTimeline timeline = new MelodyTimeline(size);
+        for (int j = 0; j < size; j++) {
+            int index = (int) keys[j];
+            Melody.Note note = flat[index];
+            timeline.times[j] = note.time();
+            timeline.notes[j] = note.note();
+            timeline.velocities[j] = note.velocity();
+            timeline.lengths[j] = note.length();
+            timeline.tracks[j] = trackOf[index];
+        }
+        timeline.computeDetails(tracks.size());
+        return timeline;
+    }
+
+    // Far listeners get accents and a thinned melody, mid-range ones also the loud notes and a denser melody
+    private void computeDetails(int trackCount) {
+        int size = times.length;
+        if (size == 0) return;
+
+        // The melody is the highest sounding track among those with a fair share of the notes
+        long[] pitchSums = new long[trackCount];
+        int[] counts = new int[trackCount];
+        for (int i = 0; i < size; i++) {
+            pitchSums[tracks[i]] += notes[i];
+            counts[tracks[i]]++;
+        }
+        int melodyTrack = 0;
+        double highest = Double.NEGATIVE_INFINITY;
+        for (int track = 0; track < trackCount; track++) {
+            if (counts[track] == 0 || counts[track] * 10 < size) continue;
+            double mean = (double) pitchSums[track] / counts[track];
+            if (mean > highest) {
+                highest = mean;
+                melodyTrack = track;
+            }
+        }
+
+        // Strictly louder than the percentile, velocities are normalized and often tie, in which case nothing stands out
+        int[] sorted = velocities.clone();
+        Arrays.sort(sorted);
+        int loud = sorted[(int) (size * 0.75)];
+        int accent = sorted[(int) (size * 0.9)];
+
+        int far = fit(DETAIL_FAR, accent, melodyTrack, FAR_MELODY_SPACING_MS, (int) (size * FAR_SHARE));
+        fit(DETAIL_MID, loud, melodyTrack, MID_MELODY_SPACING_MS, (int) (size * MID_SHARE) - far);
+    }
+
+    // Raises notes to the level, thinning the melody with the smallest spacing of at least the given one that stays within the limit
+    private int fit(int level, int threshold, int melodyTrack, int spacing, int limit) {
+        int raised = raise(level, threshold, melodyTrack, spacing);
+        if (raised <= limit) return raised;
+
+        int low = spacing + 1;
+        int high = MAX_MELODY_SPACING_MS;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (raise(level, threshold, melodyTrack, mid) <= limit) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return raise(level, threshold, melodyTrack, low);
+    }
+
+    // Sets notes below the level to it when louder than the threshold or when they are melody notes at least spacing apart,
+    // all others to near, and returns how many notes got the level
+    private int raise(int level, int threshold, int melodyTrack, int spacing) {
+        int raised = 0;
+        int lastMelody = Integer.MIN_VALUE;
+        for (int i = 0; i < times.length; i++) {
+            boolean melody = tracks[i] == melodyTrack;
+            if (details[i] > level) {
+                if (melody) lastMelody = times[i];
+                continue;
+            }
+            if (velocities[i] > threshold || (melody && (long) times[i] - lastMelody >= spacing)) {
+                details[i] = (byte) level;
+                if (melody) lastMelody = times[i];
+                raised++;
+            } else {
+                details[i] = DETAIL_NEAR;
+            }
+        }
+        return raised;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public int time(int i) {
+        return times[i];
+    }
+
+    public int note(int i) {
+        return notes[i];
+    }
+
+    public int velocity(int i) {
+        return velocities[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    public int track(int i) {
+        return tracks[i];
+    }
+
+    public int detail(int i) {
+        return details[i];
+    }
+
+    // Index of the first note starting at or after the given time
+    public int seek(long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Same as seek, but reuses a cursor from the previous tick when it is still in place
+    public int seek(long time, int hint) {
+        if (hint >= 0 && hint <= times.length
+                && (hint == times.length || times[hint] >= time)
+                && (hint == 0 || times[hint - 1] < time)) {
+            return hint;
+        }
+        return seek(time);
+    }
+}
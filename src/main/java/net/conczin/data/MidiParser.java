@@ -1,150 +1,330 @@
 package net.conczin.data;
 
-import javax.sound.midi.*;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+// Reads Standard MIDI Files directly, only decoding notes, tempo changes and track names
 public class MidiParser {
-    public static List<Melody.Track> parseMidi(InputStream inputStream) {
-        List<Melody.Track> tracks = new LinkedList<>();
+    private static final int HEADER_CHUNK = 0x4D546864; // MThd
+    private static final int TRACK_CHUNK = 0x4D54726B; // MTrk
+
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_TEMPO = 0x51;
+    private static final int META_END_OF_TRACK = 0x2F;
 
-        Sequence sequence;
+    public static List<Melody.Track> parseMidi(InputStream inputStream) {
         try {
-            sequence = MidiSystem.getSequence(inputStream);
-        } catch (InvalidMidiDataException | IOException e) {
+            return parseMidi(inputStream.readAllBytes());
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    public static List<Melody.Track> parseMidi(byte[] data) {
+        Reader reader = new Reader(data);
+
+        // Header
+        if (reader.remaining() < 14 || reader.int32() != HEADER_CHUNK) {
+            throw new RuntimeException("Invalid MIDI file: missing header");
+        }
+        int headerLength = reader.int32();
+        if (Integer.compareUnsigned(headerLength, 6) < 0) {
+            throw new RuntimeException("Invalid MIDI file: bad header length");
+        }
+        int headerEnd = (int) Math.min((long) reader.position + (headerLength & 0xFFFFFFFFL), data.length);
+        reader.int16(); // Format, all tracks are read the same way
+        int trackCount = reader.int16();
+        int division = reader.int16();
+        reader.seek(headerEnd);
+
+        // Ticks per beat, for SMPTE timing the ticks per frame are used like before
+        int resolution = (division & 0x8000) != 0 ? division & 0xFF : division;
+        if (resolution <= 0) {
+            throw new RuntimeException("Invalid MIDI file: bad time division");
+        }
 
-        // Fetch shared events
-        List<MidiEvent> sharedEvents = new LinkedList<>();
-        for (Track track : sequence.getTracks()) {
-            getEvents(track).stream()
-                    .filter(event -> event.getMessage() instanceof MetaMessage m && m.getType() == 0x51)
-                    .forEach(sharedEvents::add);
+        // Locate the track chunks, skipping unknown chunks
+        int[] trackStarts = new int[trackCount];
+        int[] trackEnds = new int[trackCount];
+        int tracksFound = 0;
+        while (tracksFound < trackCount && reader.remaining() >= 8) {
+            int type = reader.int32();
+            int length = reader.int32();
+            int end = (int) Math.min((long) reader.position + (length & 0xFFFFFFFFL), data.length);
+            if (type == TRACK_CHUNK) {
+                trackStarts[tracksFound] = reader.position;
+                trackEnds[tracksFound] = end;
+                tracksFound++;
+            }
+            reader.seek(end);
+        }
+
+        // Tempo changes apply to all tracks
+        TempoMap.Builder tempoBuilder = new TempoMap.Builder();
+        for (int t = 0; t < tracksFound; t++) {
+            scanTempos(reader, trackStarts[t], trackEnds[t], tempoBuilder);
         }
+        TempoMap tempos = tempoBuilder.build(resolution);
 
-        // Iterate through tracks and MIDI events
+        // Decode notes of each track
+        List<NoteBuffer> buffers = new ArrayList<>(tracksFound);
         int trackNr = 1;
-        for (Track track : sequence.getTracks()) {
-            // Merge with shared events and sort
-            List<MidiEvent> events = getEvents(track);
-            events.addAll(0, sharedEvents);
-            events.sort((a, b) -> (int) (a.getTick() - b.getTick()));
-
-            double bpm = 120;
-            long lastTick = 0;
-            double time = 0;
-            String name = "Track " + trackNr;
-            List<Melody.Note> notes = new LinkedList<>();
-            HashMap<Integer, Melody.Note.Builder> currentNotes = new HashMap<>();
-
-            for (MidiEvent event : events) {
-                // Convert notes into ms
-                long tick = event.getTick();
-                double deltaMs = ((tick - lastTick) * 60000.0) / (sequence.getResolution() * bpm);
-                time += deltaMs;
-                lastTick = tick;
-                int ms = (int) time;
-
-                MidiMessage message = event.getMessage();
-
-                // Parse meta events
-                if (message instanceof MetaMessage metaMessage) {
-                    byte[] data = metaMessage.getData();
-                    int type = metaMessage.getType();
-                    if (type == 0x03) {
-                        String newName = new String(data).strip();
-                        if (!newName.isEmpty()) {
-                            name = newName;
-                        }
-                    } else if (type == 0x51) {
-                        int microsecondsPerBeat = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
-                        bpm = Math.round(60000000.0f / microsecondsPerBeat);
-                    }
+        for (int t = 0; t < tracksFound; t++) {
+            NoteBuffer buffer = readTrack(reader, trackStarts[t], trackEnds[t], tempos, "Track " + trackNr);
+            if (buffer.size > 0) {
+                trackNr += 1;
+                buffer.sortByTime();
+                buffers.add(buffer);
+            }
+        }
+
+        // Find first note and average velocity
+        int offset = Integer.MAX_VALUE;
+        int totalVelocity = 0;
+        int totalNotes = 0;
+        for (NoteBuffer buffer : buffers) {
+            offset = Math.min(offset, buffer.times[0]);
+            for (int i = 0; i < buffer.size; i++) {
+                totalVelocity += buffer.velocities[i];
+            }
+            totalNotes += buffer.size;
+        }
+        float averageVelocity = (float) totalVelocity / (float) totalNotes;
+
+        // And offset all notes
+        List<Melody.Track> tracks = new ArrayList<>(buffers.size());
+        for (NoteBuffer buffer : buffers) {
+            List<Melody.Note> notes = new ArrayList<>(buffer.size);
+            for (int i = 0; i < buffer.size; i++) {
+                notes.add(new Melody.Note(
+                        buffer.notes[i],
+                        (int) (buffer.velocities[i] / averageVelocity * 64),
+                        buffer.times[i] - offset,
+                        buffer.lengths[i]
+                ));
+            }
+            tracks.add(new Melody.Track(buffer.name, notes));
+        }
+
+        return tracks;
+    }
+
+    private static void scanTempos(Reader reader, int start, int end, TempoMap.Builder tempos) {
+        reader.seek(start);
+        long tick = 0;
+        int status = 0;
+        while (reader.position < end) {
+            tick += reader.varInt();
+            int b = reader.uint8();
+            if (b == 0xFF) {
+                int type = reader.uint8();
+                int length = reader.varInt();
+                if (type == META_TEMPO && length >= 3) {
+                    tempos.add(tick, reader.int24At(reader.position));
                 }
+                reader.skip(length);
+                if (type == META_END_OF_TRACK) return;
+            } else if (b == 0xF0 || b == 0xF7) {
+                reader.skip(reader.varInt());
+            } else {
+                status = skipChannelEvent(reader, b, status);
+            }
+        }
+    }
 
-                // Parse note on/off events
-                if (message instanceof ShortMessage sm) {
-                    int command = sm.getCommand();
+    private static NoteBuffer readTrack(Reader reader, int start, int end, TempoMap tempos, String defaultName) {
+        NoteBuffer buffer = new NoteBuffer(defaultName);
 
-                    // Another way to decode note offs is note ons with velocity 0
-                    if (command == ShortMessage.NOTE_ON && sm.getData2() == 0) {
-                        command = ShortMessage.NOTE_OFF;
-                    }
+        // Notes currently held, by key
+        int[] heldTimes = new int[128];
+        int[] heldVelocities = new int[128];
+        boolean[] held = new boolean[128];
+
+        long tick = 0;
 
-                    if (command == ShortMessage.NOTE_ON) {
-                        int note = sm.getData1();
-                        int velocity = sm.getData2();
-
-                        currentNotes.put(note, new Melody.Note.Builder(note, velocity, ms));
-                    } else if (command == ShortMessage.NOTE_OFF) {
-                        int note = sm.getData1();
-                        Melody.Note.Builder noteBuilder = currentNotes.get(note);
-                        currentNotes.remove(note);
-                        if (noteBuilder != null) {
-                            noteBuilder.length = ms - noteBuilder.time;
-                            notes.add(noteBuilder.build());
-                        }
+        reader.seek(start);
+        int status = 0;
+        while (reader.position < end) {
+            tick += reader.varInt();
+            int ms = tempos.toMillis(tick);
+
+            int b = reader.uint8();
+            if (b == 0xFF) {
+                int type = reader.uint8();
+                int length = reader.varInt();
+                if (type == META_TRACK_NAME) {
+                    String newName = reader.string(length).strip();
+                    if (!newName.isEmpty()) {
+                        buffer.name = newName;
                     }
                 }
+                reader.skip(length);
+                if (type == META_END_OF_TRACK) break;
+                continue;
+            } else if (b == 0xF0 || b == 0xF7) {
+                reader.skip(reader.varInt());
+                continue;
             }
 
-            if (!notes.isEmpty()) {
-                trackNr += 1;
+            // Channel events, possibly using running status
+            int data1;
+            if (b < 0x80) {
+                if (status == 0) {
+                    throw new RuntimeException("Invalid MIDI file: data byte without status");
+                }
+                data1 = b;
+            } else {
+                status = b;
+                data1 = dataLength(status) > 0 ? reader.uint8() : 0;
+            }
+            int data2 = dataLength(status) > 1 ? reader.uint8() : 0;
 
-                // Sort
-                notes.sort(Comparator.comparingInt(Melody.Note::time));
+            int command = status & 0xF0;
 
-                tracks.add(new Melody.Track(name, notes));
+            // Another way to decode note offs is note ons with velocity 0
+            if (command == 0x90 && data2 == 0) {
+                command = 0x80;
             }
-        }
 
-        // Find first note
-        int offset = Integer.MAX_VALUE;
-        for (Melody.Track track : tracks) {
-            List<Melody.Note> notes = track.notes();
-            if (!notes.isEmpty()) {
-                offset = Math.min(offset, notes.getFirst().time());
+            int note = data1 & 0x7F;
+            if (command == 0x90) {
+                held[note] = true;
+                heldTimes[note] = ms;
+                heldVelocities[note] = data2;
+            } else if (command == 0x80 && held[note]) {
+                held[note] = false;
+                buffer.add(note, heldVelocities[note], heldTimes[note], ms - heldTimes[note]);
             }
         }
+        return buffer;
+    }
+
+    private static int skipChannelEvent(Reader reader, int b, int status) {
+        if (b < 0x80) {
+            // Running status, the first data byte has been read already
+            if (dataLength(status) > 1) reader.skip(1);
+            return status;
+        }
+        reader.skip(dataLength(b));
+        return b;
+    }
 
-        // And average velocity
-        int totalVelocity = 0;
-        int totalNotes = 0;
-        for (Melody.Track track : tracks) {
-            for (Melody.Note note : track.notes()) {
-                totalVelocity += note.velocity();
-                totalNotes += 1;
+    private static int dataLength(int status) {
+        return switch (status & 0xF0) {
+            case 0xC0, 0xD0 -> 1;
+            case 0x80, 0x90, 0xA0, 0xB0, 0xE0 -> 2;
+            default -> 0;
+        };
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int remaining() {
+            return data.length - position;
+        }
+
+        void seek(int position) {
+            this.position = Math.max(0, Math.min(position, data.length));
+        }
+
+        void skip(int length) {
+            seek(position + length);
+        }
+
+        int uint8() {
+            if (position >= data.length) {
+                throw new RuntimeException("Invalid MIDI file: unexpected end of data");
             }
+            return data[position++] & 0xFF;
         }
-        float averageVelocity = (float) totalVelocity / (float) totalNotes;
 
-        // And offset all notes
-        for (Melody.Track track : tracks) {
-            List<Melody.Note> newNotes = new LinkedList<>();
-            for (Melody.Note note : track.notes()) {
-                newNotes.add(new Melody.Note(
-                        note.note(),
-                        (int) (note.velocity() / averageVelocity * 64),
-                        note.time() - offset,
-                        note.length()
-                ));
+        int int16() {
+            return (uint8() << 8) | uint8();
+        }
+
+        int int32() {
+            return (int16() << 16) | int16();
+        }
+
+        int int24At(int at) {
+            if (at + 3 > data.length) return 500000;
+            return ((data[at] & 0xFF) << 16) | ((data[at + 1] & 0xFF) << 8) | (data[at + 2] & 0xFF);
+        }
+
+        int varInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = uint8();
+                value = (value << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0) return value;
             }
-            track.setNotes(newNotes);
+            throw new RuntimeException("Invalid MIDI file: variable length value too long");
         }
 
-        return tracks;
+        String string(int length) {
+            int available = Math.max(0, Math.min(length, data.length - position));
+            return new String(data, position, available, StandardCharsets.UTF_8);
+        }
     }
 
-    private static List<MidiEvent> getEvents(Track track) {
-        List<MidiEvent> events = new LinkedList<>();
-        for (int i = 0; i < track.size(); i++) {
-            events.add(track.get(i));
+    private static final class NoteBuffer {
+        private String name;
+        private int[] notes = new int[64];
+        private int[] velocities = new int[64];
+        private int[] times = new int[64];
+        private int[] lengths = new int[64];
+        private int size;
+
+        NoteBuffer(String name) {
+            this.name = name;
+        }
+
+        void add(int note, int velocity, int time, int length) {
+            if (size == notes.length) {
+                notes = Arrays.copyOf(notes, size * 2);
+                velocities = Arrays.copyOf(velocities, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            notes[size] = note;
+            velocities[size] = velocity;
+            times[size] = time;
+            lengths[size] = length;
+            size++;
+        }
+
+        // Stable sort by start time, notes were added in the order they ended
+        void sortByTime() {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) times[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] sortedNotes = new int[size];
+            int[] sortedVelocities = new int[size];
+            int[] sortedTimes = new int[size];
+            int[] sortedLengths = new int[size];
+            for (int i = 0; i < size; i++) {
+                int index = (int) keys[i];
+                sortedNotes[i] = notes[index];
+                sortedVelocities[i] = velocities[index];
+                sortedTimes[i] = times[index];
+                sortedLengths[i] = lengths[index];
+            }
+            notes = sortedNotes;
+            velocities = sortedVelocities;
+            times = sortedTimes;
+            lengths = sortedLengths;
         }
-        return events;
     }
 }
@@ -0,0 +1,65 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Spreads sends over several schedulers, each listener is pinned to one of them to keep its notes in order
+public final class NoteDispatcher {
+    private final String name;
+    private final NoteScheduler[] shards;
+    private final NoteScheduler.Batch[] batches;
+    private final AtomicLong droppedVoices = new AtomicLong();
+
+    public NoteDispatcher(String name, int shardCount) {
+        this.name = name;
+        this.shards = new NoteScheduler[Math.max(1, shardCount)];
+        this.batches = new NoteScheduler.Batch[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new NoteScheduler(name + " #" + i);
+            batches[i] = new NoteScheduler.Batch();
+        }
+    }
+
+    // Hands over all sends of a tick at once and clears the batch, notes over the voice budget of their listener are dropped
+    public void schedule(NoteScheduler.Batch batch, int voiceBudget, long voiceSliceMs, long nowMs) {
+        int dropped = batch.limitVoices(voiceBudget, voiceSliceMs, nowMs);
+        if (dropped > 0) droppedVoices.addAndGet(dropped);
+
+        if (shards.length == 1) {
+            shards[0].schedule(batch);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PlayerRef listener = batch.listener(i);
+            batches[shardOf(listener)].add(listener, batch.packet(i), batch.delay(i), batch.priority(i));
+        }
+        batch.clear();
+
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].schedule(batches[i]);
+        }
+    }
+
+    private int shardOf(PlayerRef listener) {
+        int hash = System.identityHashCode(listener);
+        return ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % shards.length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDroppedVoices() {
+        return droppedVoices.get();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public NoteScheduler getShard(int i) {
+        return shards[i];
+    }
+}
@@ -0,0 +1,427 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.protocol.packets.world.PlaySoundEvent3D;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel with one slot per millisecond, pending sends live in preallocated pooled entries
+public final class NoteScheduler {
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // The dispatch thread exits after idling this long and starts again with the next notes
+    private static final long IDLE_TIMEOUT_NS = 30_000_000_000L;
+
+    private final long origin = System.nanoTime();
+    private final int[] heads = new int[WHEEL_SIZE];
+
+    // Entry pool, linked into wheel slots or the free list via next
+    private PlayerRef[] listeners = new PlayerRef[INITIAL_CAPACITY];
+    private PlaySoundEvent3D[] packets = new PlaySoundEvent3D[INITIAL_CAPACITY];
+    private long[] deadlines = new long[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int free;
+    private int pending;
+
+    // Due entries are copied here and sent outside the lock
+    private PlayerRef[] dueListeners = new PlayerRef[INITIAL_CAPACITY];
+    private PlaySoundEvent3D[] duePackets = new PlaySoundEvent3D[INITIAL_CAPACITY];
+
+    // Scratch space for grouping due packets by listener
+    private final IdentityHashMap<PlayerRef, Integer> groupIds = new IdentityHashMap<>();
+    private int[] dueGroups = new int[INITIAL_CAPACITY];
+    private PlayerRef[] groupListeners = new PlayerRef[INITIAL_CAPACITY];
+    private int[] groupStarts = new int[INITIAL_CAPACITY + 1];
+    private PlaySoundEvent3D[] ordered = new PlaySoundEvent3D[INITIAL_CAPACITY];
+
+    // Lateness of dispatched notes, measured when they are collected
+    private long dispatched;
+    private long totalLatenessMs;
+    private long maxLatenessMs;
+
+    private long cursor;
+    private final String name;
+    private Thread thread;
+
+    // Deadline the parked thread waits for, earlier sends wake it up
+    private long wakeAt = Long.MAX_VALUE;
+
+    public NoteScheduler(String name) {
+        this.name = name;
+        Arrays.fill(heads, -1);
+        linkFree(0, INITIAL_CAPACITY);
+        cursor = now();
+    }
+
+    private long now() {
+        return (System.nanoTime() - origin) / 1_000_000L;
+    }
+
+    private void linkFree(int from, int to) {
+        for (int i = from; i < to; i++) {
+            next[i] = i + 1 < to ? i + 1 : -1;
+        }
+        free = from;
+    }
+
+    private void grow() {
+        int capacity = next.length;
+        int newCapacity = capacity * 2;
+        listeners = Arrays.copyOf(listeners, newCapacity);
+        packets = Arrays.copyOf(packets, newCapacity);
+        deadlines = Arrays.copyOf(deadlines, newCapacity);
+        next = Arrays.copyOf(next, newCapacity);
+        linkFree(capacity, newCapacity);
+    }
+
+    // Hands over all sends of a tick at once and clears the batch
+    public void schedule(Batch batch) {
+        if (batch.size == 0) return;
+        boolean wake;
+        Thread thread;
+        synchronized (this) {
+            long now = now();
+            long earliest = Long.MAX_VALUE;
+            for (int i = 0; i < batch.size; i++) {
+                long deadline = now + batch.delays[i];
+                insert(batch.listeners[i], batch.packets[i], deadline);
+                earliest = Math.min(earliest, deadline);
+            }
+            wake = earliest < wakeAt;
+
+            // Started on demand, so schedulers of unloaded worlds don't keep a thread around
+            thread = this.thread;
+            if (thread == null) {
+                thread = new Thread(this::run, name);
+                thread.setDaemon(true);
+                this.thread = thread;
+                thread.start();
+                wake = false;
+            }
+        }
+        batch.clear();
+        if (wake) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void insert(PlayerRef listener, PlaySoundEvent3D packet, long deadline) {
+        if (free < 0) grow();
+
+        int entry = free;
+        free = next[entry];
+
+        // Never behind the cursor, or the send would wait for the next lap
+        deadline = Math.max(deadline, cursor);
+        int slot = (int) (deadline & WHEEL_MASK);
+        listeners[entry] = listener;
+        packets[entry] = packet;
+        deadlines[entry] = deadline;
+        next[entry] = heads[slot];
+        heads[slot] = entry;
+        pending++;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    public synchronized long getDispatched() {
+        return dispatched;
+    }
+
+    public synchronized double getAverageLatenessMs() {
+        return dispatched == 0 ? 0.0 : (double) totalLatenessMs / dispatched;
+    }
+
+    public synchronized long getMaxLatenessMs() {
+        return maxLatenessMs;
+    }
+
+    private void run() {
+        long idleSince = System.nanoTime();
+        while (true) {
+            int due = collectDue();
+            if (due > 0) {
+                dispatch(due);
+                idleSince = System.nanoTime();
+            } else {
+                boolean idle;
+                long wakeAt;
+                synchronized (this) {
+                    idle = pending == 0;
+                    if (idle && System.nanoTime() - idleSince >= IDLE_TIMEOUT_NS) {
+                        thread = null;
+                        return;
+                    }
+                    wakeAt = idle ? Long.MAX_VALUE : nextDeadline();
+                    this.wakeAt = wakeAt;
+                }
+                if (idle) {
+                    LockSupport.parkNanos(this, IDLE_TIMEOUT_NS);
+                } else {
+                    idleSince = System.nanoTime();
+                    long waitNs = origin + wakeAt * 1_000_000L - System.nanoTime();
+                    if (waitNs > 0) LockSupport.parkNanos(this, waitNs);
+                }
+            }
+        }
+    }
+
+    // Groups due packets by listener so chords and parallel tracks go out in a single flush
+    private void dispatch(int due) {
+        if (dueGroups.length < due) {
+            dueGroups = new int[dueListeners.length];
+            groupListeners = new PlayerRef[dueListeners.length];
+            groupStarts = new int[dueListeners.length + 1];
+            ordered = new PlaySoundEvent3D[dueListeners.length];
+        }
+
+        int groups = 0;
+        for (int i = 0; i < due; i++) {
+            Integer group = groupIds.get(dueListeners[i]);
+            if (group == null) {
+                group = groups++;
+                groupIds.put(dueListeners[i], group);
+                groupListeners[group] = dueListeners[i];
+                groupStarts[group + 1] = 0;
+            }
+            dueGroups[i] = group;
+            groupStarts[group + 1]++;
+        }
+        groupIds.clear();
+
+        // Order packets by group, keeping their relative order
+        groupStarts[0] = 0;
+        for (int group = 0; group < groups; group++) {
+            groupStarts[group + 1] += groupStarts[group];
+        }
+        for (int i = 0; i < due; i++) {
+            ordered[groupStarts[dueGroups[i]]++] = duePackets[i];
+            dueListeners[i] = null;
+            duePackets[i] = null;
+        }
+
+        int start = 0;
+        for (int group = 0; group < groups; group++) {
+            int end = groupStarts[group];
+            try {
+                if (end - start == 1) {
+                    groupListeners[group].getPacketHandler().write(ordered[start]);
+                } else {
+                    groupListeners[group].getPacketHandler().write(Arrays.copyOfRange(ordered, start, end));
+                }
+            } catch (RuntimeException e) {
+                // The listener disconnected in the meantime
+            }
+            groupListeners[group] = null;
+            Arrays.fill(ordered, start, end, null);
+            start = end;
+        }
+    }
+
+    // Start of the first occupied slot ahead of the cursor, entries there may be laps ahead which only wakes the thread early
+    private long nextDeadline() {
+        for (long time = cursor; time < cursor + WHEEL_SIZE; time++) {
+            if (heads[(int) (time & WHEEL_MASK)] >= 0) return time;
+        }
+        return cursor + WHEEL_SIZE;
+    }
+
+    // Advances the wheel up to now and unlinks every entry whose deadline has passed
+    private synchronized int collectDue() {
+        long now = now();
+        if (pending == 0) {
+            cursor = now;
+            return 0;
+        }
+
+        // After a long stall a single lap visits every slot
+        if (now - cursor > WHEEL_SIZE) {
+            cursor = now - WHEEL_SIZE;
+        }
+
+        int due = 0;
+        for (; cursor <= now; cursor++) {
+            int slot = (int) (cursor & WHEEL_MASK);
+            int previous = -1;
+            int entry = heads[slot];
+            while (entry >= 0) {
+                int following = next[entry];
+                if (deadlines[entry] <= cursor) {
+                    long lateness = now - deadlines[entry];
+                    totalLatenessMs += lateness;
+                    maxLatenessMs = Math.max(maxLatenessMs, lateness);
+                    dispatched++;
+
+                    if (due == dueListeners.length) {
+                        dueListeners = Arrays.copyOf(dueListeners, due * 2);
+                        duePackets = Arrays.copyOf(duePackets, due * 2);
+                    }
+                    dueListeners[due] = listeners[entry];
+                    duePackets[due] = packets[entry];
+                    due++;
+
+                    // Unlink and return to the pool
+                    if (previous < 0) {
+                        heads[slot] = following;
+                    } else {
+                        next[previous] = following;
+                    }
+                    listeners[entry] = null;
+                    packets[entry] = null;
+                    next[entry] = free;
+                    free = entry;
+                    pending--;
+                } else {
+                    previous = entry;
+                }
+                entry = following;
+            }
+        }
+        return due;
+    }
+
+    // Sends collected during a tick, reused across ticks
+    public static final class Batch {
+        private PlayerRef[] listeners = new PlayerRef[256];
+        private PlaySoundEvent3D[] packets = new PlaySoundEvent3D[256];
+        private long[] delays = new long[256];
+        private int[] priorities = new int[256];
+        private int size;
+
+        // Scratch space for the voice limit
+        private final IdentityHashMap<PlayerRef, Integer> listenerIds = new IdentityHashMap<>();
+        private long[] keys = new long[256];
+        private boolean[] dropped = new boolean[256];
+
+        // Voices already granted per listener and absolute time slice, carried across ticks
+        private final IdentityHashMap<PlayerRef, VoiceSlices> granted = new IdentityHashMap<>();
+
+        public void add(PlayerRef listener, PlaySoundEvent3D packet, long delayMs, int priority) {
+            if (size == listeners.length) {
+                listeners = Arrays.copyOf(listeners, size * 2);
+                packets = Arrays.copyOf(packets, size * 2);
+                delays = Arrays.copyOf(delays, size * 2);
+                priorities = Arrays.copyOf(priorities, size * 2);
+            }
+            listeners[size] = listener;
+            packets[size] = packet;
+            delays[size] = delayMs;
+            priorities[size] = priority;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Keeps at most budget notes per listener and slice of absolute time, counting those sent in earlier ticks,
+        // preferring higher priorities, and returns how many were dropped
+        public int limitVoices(int budget, long sliceMs, long nowMs) {
+            long baseSlice = nowMs / sliceMs;
+            granted.values().removeIf(slices -> slices.latest < baseSlice);
+            if (budget <= 0 || size == 0 || size > 1 << 20) return 0;
+            if (keys.length < size) {
+                keys = new long[listeners.length];
+                dropped = new boolean[listeners.length];
+            }
+
+            // Sort by listener and slice, then by descending priority
+            for (int i = 0; i < size; i++) {
+                int listener = listenerIds.computeIfAbsent(listeners[i], _ -> listenerIds.size()) & 0xFFFF;
+                int slice = (int) Math.min(Math.max((nowMs + delays[i]) / sliceMs - baseSlice, 0), 255);
+                long group = ((long) listener << 8) | slice;
+                keys[i] = (group << 40) | ((long) (~priorities[i] & 0xFFFFF) << 20) | i;
+            }
+            listenerIds.clear();
+            Arrays.sort(keys, 0, size);
+
+            int droppedCount = 0;
+            long group = -1;
+            VoiceSlices slices = null;
+            long slice = 0;
+            for (int i = 0; i < size; i++) {
+                long key = keys[i];
+                int index = (int) (key & 0xFFFFF);
+                if (key >>> 40 != group) {
+                    group = key >>> 40;
+                    slices = granted.computeIfAbsent(listeners[index], _ -> new VoiceSlices());
+                    slice = baseSlice + (group & 0xFF);
+                }
+                dropped[index] = !slices.grant(slice, budget);
+                if (dropped[index]) droppedCount++;
+            }
+            if (droppedCount == 0) return 0;
+
+            // Compact, keeping the order of the remaining sends
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (dropped[i]) {
+                    dropped[i] = false;
+                    continue;
+                }
+                listeners[kept] = listeners[i];
+                packets[kept] = packets[i];
+                delays[kept] = delays[i];
+                priorities[kept] = priorities[i];
+                kept++;
+            }
+            Arrays.fill(listeners, kept, size, null);
+            Arrays.fill(packets, kept, size, null);
+            size = kept;
+            return droppedCount;
+        }
+
+        PlayerRef listener(int i) {
+            return listeners[i];
+        }
+
+        PlaySoundEvent3D packet(int i) {
+            return packets[i];
+        }
+
+        long delay(int i) {
+            return delays[i];
+        }
+
+        int priority(int i) {
+            return priorities[i];
+        }
+
+        void clear() {
+            Arrays.fill(listeners, 0, size, null);
+            Arrays.fill(packets, 0, size, null);
+            size = 0;
+        }
+    }
+
+    // Voice counts of one listener in a ring of recent and upcoming slices
+    private static final class VoiceSlices {
+        private static final int SLICES = 32;
+
+        private final long[] slices = new long[SLICES];
+        private final int[] counts = new int[SLICES];
+        private long latest = Long.MIN_VALUE;
+
+        VoiceSlices() {
+            Arrays.fill(slices, -1L);
+        }
+
+        boolean grant(long slice, int budget) {
+            int i = (int) (slice & (SLICES - 1));
+            if (slices[i] != slice) {
+                slices[i] = slice;
+                counts[i] = 0;
+            }
+            if (counts[i] >= budget) return false;
+            counts[i]++;
+            latest = Math.max(latest, slice);
+            return true;
+        }
+    }
+}
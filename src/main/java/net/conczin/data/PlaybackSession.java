@@ -0,0 +1,117 @@
+package net.conczin.data;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.server.core.inventory.ItemStack;
+import com.hypixel.hytale.server.core.inventory.container.ItemContainer;
+
+import java.util.UUID;
+
+// Live playback state of one performer, only checkpointed into the held item's MelodyProgress
+public final class PlaybackSession {
+    private static final double ENSEMBLE_RANGE_SQ = 16.0 * 16.0;
+
+    public MelodyProgress progress;
+    public UUID uuid;
+    public MelodyHandle handle;
+    public String instrument;
+
+    // System tick in which the playback interaction last ticked, playback pauses without it
+    public long heldTick;
+    public boolean paused;
+
+    // Timeline cursor of the previous tick
+    public int cursor;
+
+    public final ListenerAudience audience = new ListenerAudience();
+
+    // Notes due this tick, set by MelodyPlaybackSystem
+    // The window [windowStart, windowEnd) of melody time is played over the last windowSpan ms of the buffer
+    int first;
+    int last;
+    long windowStart;
+    long windowEnd;
+    long windowSpan;
+    long anchor;
+    double x, y, z;
+    PlaybackSession ensembleLeader;
+
+    // Last time the window advanced, the real time a window may take to play
+    long advancedAt;
+
+    // The item and slot holding the last checkpoint
+    private ItemStack item;
+    private ItemContainer container;
+    private short slot;
+    private long savedWorldTime;
+    private long savedStartWorldTime;
+
+    public void hold(String instrument, long tick) {
+        this.instrument = instrument;
+        this.heldTick = tick;
+    }
+
+    void setWindow(int first, int last, long windowStart, long windowEnd, long windowSpan, long anchor, Vector3d position) {
+        this.first = first;
+        this.last = last;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.windowSpan = windowSpan;
+        this.anchor = anchor;
+        this.x = position.x;
+        this.y = position.y;
+        this.z = position.z;
+    }
+
+    // Synced to the same anchor, playing the same melody and instrument over the same window, and close by
+    boolean isInEnsembleWith(PlaybackSession other) {
+        if (anchor == 0 || anchor != other.anchor) return false;
+        if (first != other.first || last != other.last || windowEnd != other.windowEnd || windowSpan != other.windowSpan) return false;
+        if (handle.getMelody() != other.handle.getMelody() || !instrument.equals(other.instrument)) return false;
+        double dx = x - other.x, dy = y - other.y, dz = z - other.z;
+        return dx * dx + dy * dy + dz * dz <= ENSEMBLE_RANGE_SQ;
+    }
+
+    void bind(ItemStack item, ItemContainer container, short slot) {
+        this.item = item;
+        this.container = container;
+        this.slot = slot;
+    }
+
+    void load(MelodyProgress stored) {
+        this.progress = stored;
+        this.savedWorldTime = stored.worldTime;
+        this.savedStartWorldTime = stored.startWorldTime;
+        this.cursor = 0;
+        this.paused = true;
+        this.audience.invalidate();
+    }
+
+    boolean isHolding(ItemStack item) {
+        return this.item == item;
+    }
+
+    // Whether the stored progress is still our last checkpoint, and thus older than the live state
+    boolean isCheckpointOf(MelodyProgress stored) {
+        return stored.melody.equals(progress.melody)
+                && stored.worldTime == savedWorldTime
+                && stored.startWorldTime == savedStartWorldTime;
+    }
+
+    public long getSavedWorldTime() {
+        return savedWorldTime;
+    }
+
+    public void save() {
+        if (item == null) return;
+        ItemStack newItem = item.withMetadata("MelodyProgress", MelodyProgress.CODEC, progress);
+        if (container != null && !container.replaceItemStackInSlot(slot, item, newItem).succeeded()) {
+            // The slot changed under us, rebind on the next sync against the checkpoint still in it
+            item = null;
+            container = null;
+            return;
+        }
+        item = newItem;
+        savedWorldTime = progress.worldTime;
+        savedStartWorldTime = progress.startWorldTime;
+    }
+}
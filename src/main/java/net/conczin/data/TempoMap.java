@@ -0,0 +1,74 @@
+package net.conczin.data;
+
+import java.util.Arrays;
+
+// All tempo changes of a MIDI sequence, converting ticks to milliseconds without accumulating rounding errors
+final class TempoMap {
+    private static final int DEFAULT_MICROSECONDS_PER_BEAT = 500000;
+
+    private final int resolution;
+
+    // Tempo segments, each starting at a tick, with the elapsed time in microseconds times the resolution up to it
+    private final long[] ticks;
+    private final int[] microsecondsPerBeat;
+    private final long[] offsets;
+
+    private TempoMap(int resolution, long[] ticks, int[] microsecondsPerBeat) {
+        this.resolution = resolution;
+        this.ticks = ticks;
+        this.microsecondsPerBeat = microsecondsPerBeat;
+        this.offsets = new long[ticks.length];
+        for (int i = 1; i < ticks.length; i++) {
+            offsets[i] = offsets[i - 1] + (ticks[i] - ticks[i - 1]) * microsecondsPerBeat[i - 1];
+        }
+    }
+
+    int toMillis(long tick) {
+        int segment = Arrays.binarySearch(ticks, tick);
+        if (segment < 0) segment = -segment - 2;
+        long scaled = offsets[segment] + (tick - ticks[segment]) * microsecondsPerBeat[segment];
+        return (int) (scaled / (resolution * 1000L));
+    }
+
+    static final class Builder {
+        private long[] ticks = new long[16];
+        private int[] microsecondsPerBeat = new int[16];
+        private int size;
+
+        void add(long tick, int microseconds) {
+            if (microseconds <= 0) return;
+            if (size == ticks.length) {
+                ticks = Arrays.copyOf(ticks, size * 2);
+                microsecondsPerBeat = Arrays.copyOf(microsecondsPerBeat, size * 2);
+            }
+            ticks[size] = tick;
+            microsecondsPerBeat[size] = microseconds;
+            size++;
+        }
+
+        // Of several changes at the same tick the last one added wins
+        TempoMap build(int resolution) {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = (ticks[i] << 24) | i;
+            }
+            Arrays.sort(keys);
+
+            long[] mapTicks = new long[size + 1];
+            int[] mapMicroseconds = new int[size + 1];
+            mapMicroseconds[0] = DEFAULT_MICROSECONDS_PER_BEAT;
+            int count = 1;
+            for (int i = 0; i < size; i++) {
+                int index = (int) (keys[i] & 0xFFFFFF);
+                if (ticks[index] == mapTicks[count - 1]) {
+                    mapMicroseconds[count - 1] = microsecondsPerBeat[index];
+                } else {
+                    mapTicks[count] = ticks[index];
+                    mapMicroseconds[count] = microsecondsPerBeat[index];
+                    count++;
+                }
+            }
+            return new TempoMap(resolution, Arrays.copyOf(mapTicks, count), Arrays.copyOf(mapMicroseconds, count));
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
 import net.conczin.YmmersiveMelodies;
 
 import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -48,6 +49,11 @@ public class YmmersiveMelodiesRegistry implements Resource<EntityStore> {
 
     private Map<UUID, Map<String, Melody>> melodies = new HashMap<>();
 
+    // Resolved melody ids, dropped whenever a melody is added or deleted
+    // Only the playing sessions keep handles alive, so melodies nobody plays anymore can be evicted
+    private final Map<String, WeakReference<MelodyHandle>> handles = new HashMap<>();
+    private int version;
+
     public static ResourceType<EntityStore, YmmersiveMelodiesRegistry> getResourceType() {
         return YmmersiveMelodies.getInstance().getYmmersiveMelodiesRegistry();
     }
@@ -61,10 +67,35 @@ public class YmmersiveMelodiesRegistry implements Resource<EntityStore> {
 
     public void add(UUID uuid, Melody melody) {
         melodies.computeIfAbsent(uuid, _ -> new HashMap<>()).put(melody.name(), melody);
+        invalidateHandles();
     }
 
     public void delete(UUID uuid, String name) {
         melodies.get(uuid).remove(name);
+        invalidateHandles();
+    }
+
+    private void invalidateHandles() {
+        version++;
+        handles.clear();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // Resolves a melody id as stored in MelodyProgress, either "uuid:name" or a melody asset id
+    public MelodyHandle resolve(String id) {
+        WeakReference<MelodyHandle> reference = handles.get(id);
+        MelodyHandle handle = reference == null ? null : reference.get();
+        if (handle == null || !handle.isCurrent(this, id)) {
+            if (reference != null && handle == null) {
+                handles.values().removeIf(r -> r.get() == null);
+            }
+            handle = MelodyHandle.resolve(this, id);
+            handles.put(id, new WeakReference<>(handle));
+        }
+        return handle;
     }
 
     public Melody get(UUID uuid, String name) {
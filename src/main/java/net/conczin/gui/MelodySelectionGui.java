@@ -15,8 +15,8 @@ import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
 import net.conczin.data.Melody;
 import net.conczin.data.MelodyAsset;
 import net.conczin.data.MelodyPlaybackInteraction;
+import net.conczin.data.MelodyPlaybackSessions;
 import net.conczin.data.MelodyProgress;
-import net.conczin.data.MelodySyncRegistry;
 import net.conczin.data.YmmersiveMelodiesRegistry;
 import net.conczin.utils.RecordCodec;
 import net.conczin.utils.Utils;
@@ -87,7 +87,7 @@ public class MelodySelectionGui extends CodecDataInteractiveUIPage<MelodySelecti
             rowIndex++;
         }
         for (MelodyAsset value : MelodyAsset.getAssetStore().getAssetMap().getAssetMap().values()) {
-            String name = value.getMelody().name();
+            String name = value.getName();
             if (this.searchQuery.isEmpty() || value.getId().toLowerCase().contains(this.searchQuery) || name.toLowerCase().contains(this.searchQuery)) {
                 addMelody(commandBuilder, eventBuilder, rowIndex, value.getId(), name);
                 rowIndex++;
@@ -179,15 +179,17 @@ public class MelodySelectionGui extends CodecDataInteractiveUIPage<MelodySelecti
     }
 
     private void setMelody(Ref<EntityStore> ref, String selectedMelody) {
+        MelodyPlaybackSessions sessions = ref.getStore().getResource(MelodyPlaybackSessions.getResourceType());
         MelodyProgress progress = Utils.getData(ref, "MelodyProgress", MelodyProgress.CODEC);
         if (!progress.melody.isEmpty()) {
-            MelodySyncRegistry.removePlayer(Utils.getUUID(ref), progress.melody);
+            sessions.getSyncRegistry().removePlayer(Utils.getUUID(ref), progress.melody);
         }
         progress.melody = selectedMelody;
         progress.time = 0;
         progress.startWorldTime = 0;
         progress.worldTime = 0;
         Utils.setData(ref, "MelodyProgress", MelodyProgress.CODEC, progress);
+        sessions.remove(ref);
         this.selectedMelody = selectedMelody;
     }
 